@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link MasterDiscovery} against stand-in masters listening on loopback
+ * aliases. Every address of 127.0.0.0/8 is local, so no aliases have to be
+ * configured.
+ */
+public class MasterDiscoveryTest extends TestCase {
+
+  private static final String SUBNET_ADDRESS = "127.0.1.1";
+  private static final String[] MASTER_ADDRESSES = {"127.0.1.10", "127.0.1.20"};
+
+  private final List<StandInMaster> masters = new ArrayList<StandInMaster>();
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (StandInMaster master : masters) {
+      master.close();
+    }
+    super.tearDown();
+  }
+
+  public void testFindsStandInMasters() throws Exception {
+    int port = startMasters();
+    final Set<String> discovered = Collections.synchronizedSet(new HashSet<String>());
+    final AtomicInteger found = new AtomicInteger(-1);
+    final CountDownLatch finished = new CountDownLatch(1);
+    MasterDiscovery discovery = new MasterDiscovery(new int[]{port}, 16);
+    int probes = discovery.scan(InetAddress.getByName(SUBNET_ADDRESS), 24,
+        new MasterDiscovery.Listener() {
+          @Override
+          public void onMasterDiscovered(ProbeResult result) {
+            discovered.add(result.getMasterUri());
+          }
+
+          @Override
+          public void onDiscoveryFinished(int mastersFound) {
+            found.set(mastersFound);
+            finished.countDown();
+          }
+        });
+
+    assertEquals(254, probes);
+    assertTrue(finished.await(30, TimeUnit.SECONDS));
+    assertEquals(MASTER_ADDRESSES.length, found.get());
+    for (String address : MASTER_ADDRESSES) {
+      assertTrue(discovered.contains("http://" + address + ":" + port + "/"));
+    }
+  }
+
+  public void testNarrowsLargeSubnetsToSlash24() throws Exception {
+    MasterDiscovery discovery = new MasterDiscovery(new int[]{1}, 1);
+    int probes = discovery.scan(InetAddress.getByName(SUBNET_ADDRESS), 16,
+        new MasterDiscovery.Listener() {
+          @Override
+          public void onMasterDiscovered(ProbeResult result) {
+          }
+
+          @Override
+          public void onDiscoveryFinished(int mastersFound) {
+          }
+        });
+    discovery.cancel();
+    assertEquals(254, probes);
+  }
+
+  /**
+   * Starts a stand-in master on every alias, all on the same port.
+   *
+   * @return the port
+   */
+  private int startMasters() throws IOException {
+    int port = 0;
+    for (String address : MASTER_ADDRESSES) {
+      StandInMaster master = new StandInMaster(InetAddress.getByName(address), port);
+      masters.add(master);
+      port = master.getPort();
+    }
+    return port;
+  }
+
+  /**
+   * Answers every XML-RPC call with a successful {@code getUri} response.
+   */
+  private static final class StandInMaster implements Runnable {
+
+    private final ServerSocket serverSocket;
+    private final String uri;
+
+    StandInMaster(InetAddress address, int port) throws IOException {
+      serverSocket = new ServerSocket();
+      serverSocket.bind(new InetSocketAddress(address, port));
+      uri = "http://" + address.getHostAddress() + ":" + serverSocket.getLocalPort() + "/";
+      Thread thread = new Thread(this, "StandInMaster " + uri);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      while (!serverSocket.isClosed()) {
+        try {
+          Socket socket = serverSocket.accept();
+          try {
+            answer(socket);
+          } finally {
+            socket.close();
+          }
+        } catch (IOException e) {
+          // Port checks close the connection without sending a request.
+        }
+      }
+    }
+
+    private void answer(Socket socket) throws IOException {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      int contentLength = -1;
+      String line;
+      while ((line = readLine(in)) != null && line.length() > 0) {
+        if (line.toLowerCase().startsWith("content-length:")) {
+          contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+        }
+      }
+      if (line == null) {
+        return;
+      }
+      for (int i = 0; i < contentLength; i++) {
+        if (in.read() == -1) {
+          return;
+        }
+      }
+      byte[] body = ("<?xml version=\"1.0\"?><methodResponse><params><param><value><array><data>"
+          + "<value><i4>1</i4></value><value><string>uri</string></value>"
+          + "<value><string>" + uri + "</string></value>"
+          + "</data></array></value></param></params></methodResponse>").getBytes("UTF-8");
+      OutputStream out = socket.getOutputStream();
+      out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + body.length
+          + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+      out.write(body);
+      out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != -1) {
+        if (c == '\n') {
+          return line.toString();
+        }
+        if (c != '\r') {
+          line.append((char) c);
+        }
+      }
+      return line.length() > 0 ? line.toString() : null;
+    }
+  }
+}
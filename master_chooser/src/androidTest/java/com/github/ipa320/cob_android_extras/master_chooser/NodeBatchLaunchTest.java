@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import junit.framework.TestCase;
+
+import org.ros.node.NodeListener;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link NodeBatchLaunch#get()} returns however a node of the
+ * batch ends, rather than waiting for a node which will never start.
+ */
+public class NodeBatchLaunchTest extends TestCase {
+
+  private static final long TIMEOUT_SECONDS = 5;
+
+  private ScheduledExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testDroppedBeforeLaunchFailsTheBatch() throws Exception {
+    NodeBatchLaunch batch = new NodeBatchLaunch(2);
+    batch.newMember().onStart(null);
+    batch.newMember().stopped(new CancellationException("dropped"));
+    assertFailedWith(batch, CancellationException.class);
+  }
+
+  public void testRejectedLaunchFailsTheBatch() throws Exception {
+    final NodeBatchLaunch batch = new NodeBatchLaunch(1);
+    RegistrationScheduler scheduler = new RegistrationScheduler(executor, 1);
+    scheduler.submit(new RegistrationScheduler.Registration() {
+      @Override
+      public boolean skip() {
+        return false;
+      }
+
+      @Override
+      public void launch(NodeListener admissionListener) {
+        throw new RejectedExecutionException("saturated");
+      }
+
+      @Override
+      public void abort(Runnable retry) {
+        fail("A rejected launch is not retried");
+      }
+
+      @Override
+      public void giveUp(Throwable cause) {
+        batch.fail(cause);
+      }
+    });
+    assertFailedWith(batch, RejectedExecutionException.class);
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  public void testShutDownBeforeStartFailsTheBatch() throws Exception {
+    NodeBatchLaunch batch = new NodeBatchLaunch(1);
+    NodeBatchLaunch.Member member = batch.newMember();
+    // A shutdown alone may be a retry, the service reports the end of the node.
+    member.onShutdownComplete(null);
+    assertFalse(batch.isDone());
+    member.stopped(new CancellationException("shut down"));
+    assertFailedWith(batch, CancellationException.class);
+  }
+
+  public void testShutDownAfterStartCompletesTheBatch() throws Exception {
+    NodeBatchLaunch batch = new NodeBatchLaunch(1);
+    NodeBatchLaunch.Member member = batch.newMember();
+    member.onStart(null);
+    member.stopped(new CancellationException("shut down"));
+    assertNull(batch.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(1, batch.getStartedCount());
+  }
+
+  private static void assertFailedWith(NodeBatchLaunch batch, Class<? extends Throwable> cause)
+      throws Exception {
+    try {
+      batch.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      fail("Expected the batch to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), cause.isInstance(e.getCause()));
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Races TCP connections to all addresses of a host ("happy eyeballs").
+ * <p/>
+ * Addresses are tried alternating between IPv6 and IPv4. A new attempt is
+ * started every {@link #STAGGER_MILLIS} or as soon as the previous one failed,
+ * whichever comes first. The first address which accepts the connection wins
+ * and its connection is handed to the caller, all other attempts are cancelled
+ * and their connections closed.
+ */
+final class AddressRacer {
+
+  static final long STAGGER_MILLIS = 250;
+
+  private AddressRacer() {
+    // Utility class.
+  }
+
+  /**
+   * @return the connection of the first address which accepted a TCP
+   *         connection on the given port, to be closed by the caller
+   * @throws SocketTimeoutException if no address answered within the timeout
+   * @throws IOException the last connection error if all addresses failed
+   */
+  static Socket race(InetAddress[] addresses, final int port, final int timeoutMillis,
+                     Executor executor) throws IOException, InterruptedException {
+    List<InetAddress> ordered = interleaveFamilies(addresses);
+    CompletionService<Socket> attempts = new ExecutorCompletionService<Socket>(executor);
+    List<Future<Socket>> futures = new ArrayList<Future<Socket>>(ordered.size());
+    // Every connection made by an attempt, closed once the race is decided
+    // unless it won. Attempts which connect later close their own.
+    final List<Socket> connected = new ArrayList<Socket>();
+    final AtomicBoolean decided = new AtomicBoolean();
+    Socket winner = null;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    IOException lastError = null;
+    int next = 0;
+    int inFlight = 0;
+    try {
+      while (true) {
+        if (next < ordered.size()) {
+          final InetAddress address = ordered.get(next++);
+          futures.add(attempts.submit(new Callable<Socket>() {
+            @Override
+            public Socket call() throws IOException {
+              Socket socket = connect(address, port, timeoutMillis);
+              synchronized (connected) {
+                if (!decided.get()) {
+                  connected.add(socket);
+                  return socket;
+                }
+              }
+              socket.close();
+              throw new SocketException("Race already decided");
+            }
+          }));
+          inFlight++;
+        }
+        if (inFlight == 0) {
+          throw lastError != null ? lastError : new ConnectException("No address to connect to");
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          throw new SocketTimeoutException("Connect timed out");
+        }
+        long wait = next < ordered.size() ? Math.min(STAGGER_MILLIS, remaining) : remaining;
+        Future<Socket> completed = attempts.poll(wait, TimeUnit.MILLISECONDS);
+        if (completed == null) {
+          // Stagger delay elapsed, start the next attempt.
+          continue;
+        }
+        inFlight--;
+        try {
+          winner = completed.get();
+          return winner;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            lastError = (IOException) e.getCause();
+          } else {
+            lastError = new IOException(e.getCause().toString());
+          }
+        }
+      }
+    } finally {
+      for (Future<Socket> future : futures) {
+        future.cancel(true);
+      }
+      synchronized (connected) {
+        decided.set(true);
+        for (Socket socket : connected) {
+          if (socket != winner) {
+            closeQuietly(socket);
+          }
+        }
+      }
+    }
+  }
+
+  private static Socket connect(InetAddress address, int port, int timeoutMillis)
+      throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+      return socket;
+    } catch (IOException e) {
+      closeQuietly(socket);
+      throw e;
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to clean up.
+    }
+  }
+
+  /**
+   * Orders the addresses IPv6, IPv4, IPv6, ... while keeping the resolver's
+   * order within each family.
+   */
+  static List<InetAddress> interleaveFamilies(InetAddress[] addresses) {
+    List<InetAddress> v6 = new ArrayList<InetAddress>();
+    List<InetAddress> v4 = new ArrayList<InetAddress>();
+    for (InetAddress address : addresses) {
+      if (address instanceof Inet6Address) {
+        v6.add(address);
+      } else {
+        v4.add(address);
+      }
+    }
+    List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+    for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+      if (i < v6.size()) {
+        ordered.add(v6.get(i));
+      }
+      if (i < v4.size()) {
+        ordered.add(v4.get(i));
+      }
+    }
+    return ordered;
+  }
+}
@@ -1,29 +1,300 @@
 package com.github.ipa320.cob_android_extras.master_chooser;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ConnectionDatabaseHelper extends SQLiteOpenHelper {
   private static final String DATABASE_NAME="masterconnections";
+  private static final String TAG="Connections";
   static final String KEY_ID="_id";
   static final String TITLE="title";
   static final String URL="value";
-  
+  static final String LAST_USED="last_used";
+  static final String USE_COUNT="use_count";
+  static final String HOST="host";
+  static final String PORT="port";
+  static final String LAST_SEEN="last_seen";
+  static final String RTT="rtt";
+  static final String LAST_PROBED="last_probed";
+  static final String REACHABLE="reachable";
+
+  /**
+   * Most recently used connections first, then the most frequently used ones.
+   */
+  static final String ORDER_MRU = LAST_USED + " DESC, " + USE_COUNT + " DESC, " + TITLE;
+
+  /**
+   * One step of the schema migration, upgrading from the version at its index
+   * plus one to the next. Steps must only add to the schema, never drop data.
+   */
+  private interface Migration {
+    void apply(SQLiteDatabase db);
+  }
+
+  private static final Migration[] MIGRATIONS = {
+      // 1 -> 2: usage statistics for the MRU ordering.
+      new Migration() {
+        @Override
+        public void apply(SQLiteDatabase db) {
+          db.execSQL("ALTER TABLE connections ADD COLUMN last_used INTEGER");
+          db.execSQL("ALTER TABLE connections ADD COLUMN use_count INTEGER NOT NULL DEFAULT 0");
+        }
+      },
+      // 2 -> 3: parsed host and port, probe results and indexes.
+      new Migration() {
+        @Override
+        public void apply(SQLiteDatabase db) {
+          db.execSQL("ALTER TABLE connections ADD COLUMN host TEXT");
+          db.execSQL("ALTER TABLE connections ADD COLUMN port INTEGER");
+          db.execSQL("ALTER TABLE connections ADD COLUMN last_seen INTEGER");
+          db.execSQL("ALTER TABLE connections ADD COLUMN rtt INTEGER");
+          backfillHosts(db);
+          db.execSQL("CREATE INDEX connections_title ON connections (title)");
+          db.execSQL("CREATE INDEX connections_value ON connections (value)");
+          db.execSQL("CREATE INDEX connections_host ON connections (host, port)");
+          db.execSQL("CREATE INDEX connections_mru ON connections (last_used DESC, use_count DESC, title)");
+        }
+      },
+      // 3 -> 4: full text index over title, host and port for the search.
+      new Migration() {
+        @Override
+        public void apply(SQLiteDatabase db) {
+          db.execSQL("CREATE VIRTUAL TABLE connections_fts USING fts3(title, host, port)");
+          db.execSQL("CREATE TRIGGER connections_fts_insert AFTER INSERT ON connections BEGIN "
+              + "INSERT INTO connections_fts (docid, title, host, port) "
+              + "VALUES (new._id, new.title, new.host, new.port); END");
+          db.execSQL("CREATE TRIGGER connections_fts_update AFTER UPDATE OF title, host, port ON connections BEGIN "
+              + "UPDATE connections_fts SET title = new.title, host = new.host, port = new.port "
+              + "WHERE docid = old._id; END");
+          db.execSQL("CREATE TRIGGER connections_fts_delete AFTER DELETE ON connections BEGIN "
+              + "DELETE FROM connections_fts WHERE docid = old._id; END");
+          db.execSQL("INSERT INTO connections_fts (docid, title, host, port) "
+              + "SELECT _id, title, host, port FROM connections");
+        }
+      },
+      // 4 -> 5: outcome of the last probe, reachable or not, for the status badges.
+      new Migration() {
+        @Override
+        public void apply(SQLiteDatabase db) {
+          db.execSQL("ALTER TABLE connections ADD COLUMN last_probed INTEGER");
+          db.execSQL("ALTER TABLE connections ADD COLUMN reachable INTEGER");
+        }
+      },
+  };
+
+  private static final int DATABASE_VERSION = MIGRATIONS.length + 1;
+
+  // Compiled on first use by the methods below, guarded by this and closed
+  // again in close().
+  private SQLiteStatement containsUrlStatement;
+  private SQLiteStatement markUsedStatement;
+  private SQLiteStatement probeResultStatement;
+
   public ConnectionDatabaseHelper(Context context) {
-    super(context, DATABASE_NAME, null, 1);
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
   }
-  
+
   @Override
   public void onCreate(SQLiteDatabase db) {
+    // Always start from the first schema so that new and upgraded databases
+    // end up exactly the same.
     db.execSQL("CREATE TABLE connections (_id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, value TEXT);");
-    
+    migrate(db, 1, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (!db.isReadOnly()) {
+      // Lets the list load while the probe results are written.
+      db.enableWriteAheadLogging();
+    }
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    android.util.Log.w("Connections", "Upgrading database, which will destroy all old data");
-    db.execSQL("DROP TABLE IF EXISTS constants");
-    onCreate(db);
+    android.util.Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+    migrate(db, oldVersion, newVersion);
+  }
+
+  private static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+    for (int version = oldVersion; version < newVersion; version++) {
+      MIGRATIONS[version - 1].apply(db);
+    }
+  }
+
+  private static void backfillHosts(SQLiteDatabase db) {
+    Cursor cursor = db.rawQuery("SELECT _id, value FROM connections", null);
+    SQLiteStatement update = db.compileStatement("UPDATE connections SET host = ?, port = ? WHERE _id = ?");
+    try {
+      while (cursor.moveToNext()) {
+        URI uri = parseUrl(cursor.getString(1));
+        if (uri == null) {
+          continue;
+        }
+        update.bindString(1, uri.getHost());
+        update.bindLong(2, uri.getPort());
+        update.bindLong(3, cursor.getLong(0));
+        update.execute();
+        update.clearBindings();
+      }
+    } finally {
+      update.close();
+      cursor.close();
+    }
+  }
+
+  private static URI parseUrl(String url) {
+    if (url == null) {
+      return null;
+    }
+    try {
+      return MasterProber.parseMasterUri(url);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the values of a new connection, including its parsed host and
+   *         port
+   */
+  static ContentValues newConnectionValues(String title, String url) {
+    ContentValues values = new ContentValues(4);
+    values.put(TITLE, title);
+    values.put(URL, url);
+    URI uri = parseUrl(url);
+    if (uri != null) {
+      values.put(HOST, uri.getHost());
+      values.put(PORT, uri.getPort());
+    }
+    return values;
+  }
+
+  /**
+   * Turns what the user typed into an FTS query matching all rows which have
+   * a word starting with each of the typed words, so "cob4-17" finds
+   * "cob4-17" as well as "cob4-170".
+   *
+   * @return the query, or null if the filter contains no words
+   */
+  static String toFtsQuery(String filter) {
+    StringBuilder query = new StringBuilder();
+    for (String token : filter.split("[^\\p{L}\\p{N}]+")) {
+      if (token.length() > 0) {
+        if (query.length() > 0) {
+          query.append(' ');
+        }
+        query.append(token).append('*');
+      }
+    }
+    return query.length() > 0 ? query.toString() : null;
+  }
+
+  /**
+   * Records that the connection with the given URL was just used.
+   */
+  public void markUsed(String url) {
+    synchronized (this) {
+      if (markUsedStatement == null) {
+        markUsedStatement = getWritableDatabase().compileStatement(
+            "UPDATE connections SET last_used = ?, use_count = use_count + 1 WHERE value = ?");
+      }
+      markUsedStatement.bindLong(1, System.currentTimeMillis());
+      markUsedStatement.bindString(2, url);
+      markUsedStatement.execute();
+      markUsedStatement.clearBindings();
+    }
+  }
+
+  /**
+   * Stores the outcome of a probe. The round trip and the time the master was
+   * last seen are only updated if it was reachable, so they keep describing
+   * the last successful probe.
+   */
+  public void updateProbeResult(ProbeResult result) {
+    synchronized (this) {
+      if (probeResultStatement == null) {
+        probeResultStatement = getWritableDatabase().compileStatement(
+            "UPDATE connections SET last_probed = ?1, reachable = ?2, "
+                + "last_seen = CASE WHEN ?2 THEN ?1 ELSE last_seen END, "
+                + "rtt = CASE WHEN ?2 THEN ?3 ELSE rtt END WHERE value = ?4");
+      }
+      probeResultStatement.bindLong(1, System.currentTimeMillis());
+      probeResultStatement.bindLong(2, result.isReachable() ? 1 : 0);
+      probeResultStatement.bindLong(3, result.getRoundTripMillis());
+      probeResultStatement.bindString(4, result.getMasterUri());
+      probeResultStatement.execute();
+      probeResultStatement.clearBindings();
+    }
+  }
+
+  /**
+   * @return the URLs of all saved connections, ordered by title
+   */
+  public List<String> getUrls() {
+    Cursor cursor = getReadableDatabase().rawQuery(
+        "SELECT " + URL + " FROM connections ORDER BY " + TITLE, null);
+    try {
+      List<String> urls = new ArrayList<String>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        urls.add(cursor.getString(0));
+      }
+      return urls;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * @return whether a connection with exactly this URL is saved
+   */
+  public boolean containsUrl(String url) {
+    synchronized (this) {
+      if (containsUrlStatement == null) {
+        containsUrlStatement = getReadableDatabase().compileStatement(
+            "SELECT _id FROM connections WHERE value = ? LIMIT 1");
+      }
+      containsUrlStatement.bindString(1, url);
+      try {
+        containsUrlStatement.simpleQueryForLong();
+        return true;
+      } catch (SQLiteDoneException e) {
+        return false;
+      } finally {
+        containsUrlStatement.clearBindings();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closeStatements();
+    super.close();
+  }
+
+  private void closeStatements() {
+    if (containsUrlStatement != null) {
+      containsUrlStatement.close();
+      containsUrlStatement = null;
+    }
+    if (markUsedStatement != null) {
+      markUsedStatement.close();
+      markUsedStatement = null;
+    }
+    if (probeResultStatement != null) {
+      probeResultStatement.close();
+      probeResultStatement = null;
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Imports and exports the connections table as CSV.
+ * <p/>
+ * Every line holds a title and a master URL, an optional first line
+ * {@code title,url} is skipped. Fields containing commas or quotes are quoted
+ * the usual CSV way; fields spanning several lines are not supported. Files
+ * are streamed line by line, so their size does not matter.
+ */
+final class ConnectionTransfer {
+
+  static final String HEADER = "title,url";
+
+  /**
+   * Counts of an import.
+   */
+  static final class Result {
+
+    final int imported;
+    final int duplicates;
+    final int invalid;
+
+    Result(int imported, int duplicates, int invalid) {
+      this.imported = imported;
+      this.duplicates = duplicates;
+      this.invalid = invalid;
+    }
+
+    @Override
+    public String toString() {
+      return "Imported " + imported + " master(s), skipped " + duplicates + " duplicate(s) and "
+          + invalid + " invalid line(s).";
+    }
+  }
+
+  private ConnectionTransfer() {
+    // Utility class.
+  }
+
+  /**
+   * Inserts all connections of the given CSV whose URL is not saved yet.
+   * Must be called inside a transaction, see {@link ConnectionWriter}.
+   */
+  static Result importCsv(Reader reader, SQLiteDatabase db) throws IOException {
+    Set<String> urls = new HashSet<String>();
+    Cursor cursor = db.rawQuery("SELECT value FROM connections", null);
+    try {
+      while (cursor.moveToNext()) {
+        urls.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    SQLiteStatement insert = db.compileStatement(
+        "INSERT INTO connections (title, value, host, port) VALUES (?, ?, ?, ?)");
+    int imported = 0;
+    int duplicates = 0;
+    int invalid = 0;
+    try {
+      BufferedReader lines = new BufferedReader(reader);
+      String line;
+      boolean first = true;
+      while ((line = lines.readLine()) != null) {
+        if (first) {
+          first = false;
+          if (line.trim().equalsIgnoreCase(HEADER)) {
+            continue;
+          }
+        }
+        if (line.trim().length() == 0) {
+          continue;
+        }
+        List<String> fields = parseLine(line);
+        if (fields.size() < 2) {
+          invalid++;
+          continue;
+        }
+        String title = fields.get(0).trim();
+        String url = fields.get(1).trim();
+        URI uri;
+        try {
+          uri = MasterProber.parseMasterUri(url);
+        } catch (URISyntaxException e) {
+          invalid++;
+          continue;
+        }
+        if (!urls.add(url)) {
+          duplicates++;
+          continue;
+        }
+        insert.bindString(1, title.length() > 0 ? title : url);
+        insert.bindString(2, url);
+        insert.bindString(3, uri.getHost());
+        insert.bindLong(4, uri.getPort());
+        insert.executeInsert();
+        insert.clearBindings();
+        imported++;
+      }
+    } finally {
+      insert.close();
+    }
+    return new Result(imported, duplicates, invalid);
+  }
+
+  /**
+   * @return title and URL of all connections ordered by title
+   */
+  static List<String[]> readConnections(SQLiteDatabase db) {
+    Cursor cursor = db.rawQuery("SELECT title, value FROM connections ORDER BY title", null);
+    try {
+      List<String[]> connections = new ArrayList<String[]>(cursor.getCount());
+      while (cursor.moveToNext()) {
+        connections.add(new String[]{cursor.getString(0), cursor.getString(1)});
+      }
+      return connections;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Writes the given title and URL pairs, see {@link #readConnections}.
+   */
+  static void writeCsv(List<String[]> connections, Writer writer) throws IOException {
+    writer.write(HEADER);
+    writer.write('\n');
+    for (String[] connection : connections) {
+      writer.write(quote(connection[0]));
+      writer.write(',');
+      writer.write(quote(connection[1]));
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  static List<String> parseLine(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"') {
+          if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+            field.append('"');
+            i++;
+          } else {
+            quoted = false;
+          }
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  static String quote(String value) {
+    if (value == null) {
+      return "";
+    }
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+}
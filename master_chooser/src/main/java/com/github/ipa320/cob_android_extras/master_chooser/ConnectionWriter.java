@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies all changes to the connections table on a single background thread.
+ * <p/>
+ * Writes are queued and applied {@link #COALESCE_MILLIS} after the first one
+ * of a burst, all writes of a burst in a single transaction. If one of them
+ * fails, the burst is applied again one write per transaction so that only the
+ * failing write is lost. The writer holds on to one writable database for its
+ * whole lifetime and closes the helper after its last write, see
+ * {@link #close()}. The {@link Listener} is told once a transaction has
+ * committed.
+ */
+class ConnectionWriter {
+
+  private static final String TAG = "ConnectionWriter";
+
+  static final long COALESCE_MILLIS = 50;
+
+  /**
+   * A single change of the connections table. Runs on the writer thread
+   * inside a transaction.
+   */
+  interface Write {
+    void apply(SQLiteDatabase db);
+  }
+
+  /**
+   * A write which is told whether it was committed, instead of failures going
+   * to the {@link Listener}. Called on the writer thread. {@link #apply} may
+   * run more than once, only the last run counts.
+   */
+  interface ReportingWrite extends Write {
+    void onCommitted();
+
+    void onFailed(RuntimeException e);
+  }
+
+  /**
+   * Called on the writer thread after a transaction has committed.
+   */
+  interface Listener {
+    /**
+     * @param listChanged {@code true} if rows were added, removed or edited,
+     *        {@code false} if only statistics changed
+     */
+    void onCommitted(int writes, boolean listChanged);
+
+    /**
+     * Called for every write which failed and was rolled back, except for
+     * {@link ReportingWrite}s.
+     */
+    void onWriteFailed(RuntimeException e);
+  }
+
+  /**
+   * Receives a human readable summary of an import or export. Called on the
+   * writer thread.
+   */
+  interface TransferCallback {
+    void onTransferDone(String summary);
+  }
+
+  private final ConnectionDatabaseHelper helper;
+  private final Listener listener;
+  private final ScheduledExecutorService executor;
+  private final List<Write> pending;
+  private boolean pendingListChange;
+  private boolean flushScheduled;
+  private SQLiteDatabase db;
+  // Set on the writer thread once the helper is closed.
+  private boolean closed;
+
+  ConnectionWriter(ConnectionDatabaseHelper helper, Listener listener) {
+    this.helper = helper;
+    this.listener = listener;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    pending = new ArrayList<Write>();
+  }
+
+  /**
+   * Queues a write which adds, removes or edits rows.
+   */
+  void submit(Write write) {
+    submit(write, true);
+  }
+
+  private void submit(Write write, boolean listChange) {
+    synchronized (pending) {
+      pending.add(write);
+      pendingListChange |= listChange;
+      if (flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    try {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Writer closed, dropping write.");
+    }
+  }
+
+  void insert(final ContentValues values) {
+    submit(new Write() {
+      @Override
+      public void apply(SQLiteDatabase db) {
+        db.insert("connections", ConnectionDatabaseHelper.TITLE, values);
+      }
+    });
+  }
+
+  /**
+   * Inserts the connection unless one with the same URL exists already.
+   */
+  void insertIfAbsent(final ContentValues values) {
+    submit(new Write() {
+      @Override
+      public void apply(SQLiteDatabase db) {
+        if (!helper.containsUrl(values.getAsString(ConnectionDatabaseHelper.URL))) {
+          db.insert("connections", ConnectionDatabaseHelper.TITLE, values);
+        }
+      }
+    });
+  }
+
+  /**
+   * Inserts all connections whose URL is not saved yet as one batch.
+   */
+  void insertAllIfAbsent(final List<ContentValues> connections, final TransferCallback callback) {
+    submit(new ReportingWrite() {
+      private int inserted;
+
+      @Override
+      public void apply(SQLiteDatabase db) {
+        Set<String> urls = new HashSet<String>();
+        inserted = 0;
+        for (ContentValues values : connections) {
+          String url = values.getAsString(ConnectionDatabaseHelper.URL);
+          if (urls.add(url) && !helper.containsUrl(url)) {
+            db.insert("connections", ConnectionDatabaseHelper.TITLE, values);
+            inserted++;
+          }
+        }
+      }
+
+      @Override
+      public void onCommitted() {
+        callback.onTransferDone("Added " + inserted + " of " + connections.size() + " master(s)");
+      }
+
+      @Override
+      public void onFailed(RuntimeException e) {
+        callback.onTransferDone("Adding masters failed: " + e.getMessage());
+      }
+    });
+  }
+
+  void update(final long rowId, final ContentValues values) {
+    submit(new Write() {
+      @Override
+      public void apply(SQLiteDatabase db) {
+        db.update("connections", values, ConnectionDatabaseHelper.KEY_ID + " = ?",
+            new String[]{String.valueOf(rowId)});
+      }
+    });
+  }
+
+  void delete(final long rowId) {
+    submit(new Write() {
+      @Override
+      public void apply(SQLiteDatabase db) {
+        db.delete("connections", ConnectionDatabaseHelper.KEY_ID + " = ?",
+            new String[]{String.valueOf(rowId)});
+      }
+    });
+  }
+
+  void markUsed(final String url) {
+    submit(new Write() {
+      @Override
+      public void apply(SQLiteDatabase db) {
+        helper.markUsed(url);
+      }
+    });
+  }
+
+  void updateProbeResult(final ProbeResult result) {
+    submit(new Write() {
+      @Override
+      public void apply(SQLiteDatabase db) {
+        helper.updateProbeResult(result);
+      }
+    }, false);
+  }
+
+  /**
+   * Imports the connections of a CSV file, see {@link ConnectionTransfer}.
+   * Runs after all writes submitted before, in a transaction of its own; if
+   * the file cannot be read nothing is imported.
+   */
+  void importCsv(final File file, final TransferCallback callback) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+        ConnectionTransfer.Result result;
+        db.beginTransaction();
+        try {
+          Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+          try {
+            result = ConnectionTransfer.importCsv(reader, db);
+          } finally {
+            reader.close();
+          }
+          db.setTransactionSuccessful();
+        } catch (IOException e) {
+          callback.onTransferDone("Import failed: " + e.getMessage());
+          return;
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Import failed.", e);
+          callback.onTransferDone("Import failed: " + e.getMessage());
+          return;
+        } finally {
+          db.endTransaction();
+        }
+        callback.onTransferDone(result.toString());
+        listener.onCommitted(1, true);
+      }
+    });
+  }
+
+  /**
+   * Exports all connections to a CSV file. The connections are read on the
+   * writer thread after all writes submitted before, the file is written on a
+   * thread of its own so that a slow card does not hold up writes.
+   */
+  void exportCsv(final File file, final TransferCallback callback) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+        final List<String[]> connections = ConnectionTransfer.readConnections(db);
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Writer writer = new BufferedWriter(
+                  new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+              try {
+                ConnectionTransfer.writeCsv(connections, writer);
+              } finally {
+                writer.close();
+              }
+              callback.onTransferDone("Exported " + connections.size() + " master(s) to " + file);
+            } catch (IOException e) {
+              callback.onTransferDone("Export failed: " + e.getMessage());
+            }
+          }
+        }, TAG + "Export").start();
+      }
+    });
+  }
+
+  private void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Writer closed, dropping task.");
+    }
+  }
+
+  /**
+   * Stops the writer and returns immediately. The queued writes are still
+   * applied, then the writer thread closes the database helper; writes which
+   * are submitted afterwards are dropped.
+   */
+  void close() {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } finally {
+          closed = true;
+          db = null;
+          helper.close();
+        }
+      }
+    });
+    executor.shutdown();
+  }
+
+  private void flush() {
+    List<Write> writes;
+    boolean listChanged;
+    if (closed) {
+      // A flush which was scheduled before close() but ran after it.
+      return;
+    }
+    if (db == null) {
+      db = helper.getWritableDatabase();
+    }
+    synchronized (pending) {
+      flushScheduled = false;
+      if (pending.isEmpty()) {
+        return;
+      }
+      writes = new ArrayList<Write>(pending);
+      pending.clear();
+      listChanged = pendingListChange;
+      pendingListChange = false;
+    }
+    List<Write> committed = writes;
+    if (applyInTransaction(writes) != null) {
+      // The whole burst has been rolled back. Apply the writes one by one to
+      // find the failing ones without losing the others.
+      committed = new ArrayList<Write>(writes.size());
+      for (Write write : writes) {
+        RuntimeException failure = applyInTransaction(Collections.singletonList(write));
+        if (failure == null) {
+          committed.add(write);
+        } else {
+          Log.e(TAG, "Dropping write.", failure);
+          if (write instanceof ReportingWrite) {
+            ((ReportingWrite) write).onFailed(failure);
+          } else {
+            listener.onWriteFailed(failure);
+          }
+        }
+      }
+    }
+    for (Write write : committed) {
+      if (write instanceof ReportingWrite) {
+        ((ReportingWrite) write).onCommitted();
+      }
+    }
+    if (!committed.isEmpty()) {
+      listener.onCommitted(committed.size(), listChanged);
+    }
+  }
+
+  /**
+   * @return the exception which rolled the transaction back, or null if it
+   *         was committed
+   */
+  private RuntimeException applyInTransaction(List<Write> writes) {
+    db.beginTransaction();
+    try {
+      for (Write write : writes) {
+        write.apply(db);
+      }
+      db.setTransactionSuccessful();
+      return null;
+    } catch (RuntimeException e) {
+      return e;
+    } finally {
+      db.endTransaction();
+    }
+  }
+}
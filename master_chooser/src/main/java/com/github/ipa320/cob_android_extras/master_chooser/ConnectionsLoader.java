@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * Loads the saved connections off the UI thread.
+ * <p/>
+ * The loader owns its cursors: a cursor is closed once a newer one has been
+ * delivered or the loader is reset, so clients must not close them. Call
+ * {@link #onContentChanged()} after changing the connections table to reload.
+ */
+class ConnectionsLoader extends AsyncTaskLoader<Cursor> {
+
+  private static final String COLUMNS =
+      "_id, title, value, rtt, last_seen, last_probed, reachable";
+
+  static final String QUERY = "SELECT " + COLUMNS + " FROM connections ORDER BY "
+      + ConnectionDatabaseHelper.ORDER_MRU;
+
+  /**
+   * Like {@link #QUERY}, restricted to the rows matching a full text query.
+   */
+  static final String FILTERED_QUERY = "SELECT " + COLUMNS + " FROM connections WHERE _id IN "
+      + "(SELECT docid FROM connections_fts WHERE connections_fts MATCH ?) ORDER BY "
+      + ConnectionDatabaseHelper.ORDER_MRU;
+
+  private final ConnectionDatabaseHelper db;
+  private final String ftsQuery;
+  private Cursor cursor;
+
+  ConnectionsLoader(Context context, ConnectionDatabaseHelper db) {
+    this(context, db, null);
+  }
+
+  /**
+   * @param filter
+   *          the words typed into the search field, or null to load all
+   *          connections
+   */
+  ConnectionsLoader(Context context, ConnectionDatabaseHelper db, String filter) {
+    super(context);
+    this.db = db;
+    ftsQuery = filter == null ? null : ConnectionDatabaseHelper.toFtsQuery(filter);
+  }
+
+  @Override
+  public Cursor loadInBackground() {
+    Cursor result = ftsQuery == null
+        ? db.getReadableDatabase().rawQuery(QUERY, null)
+        : db.getReadableDatabase().rawQuery(FILTERED_QUERY, new String[]{ftsQuery});
+    // Fill the cursor window here rather than on the first access from the
+    // UI thread.
+    result.getCount();
+    return result;
+  }
+
+  @Override
+  public void deliverResult(Cursor result) {
+    if (isReset()) {
+      if (result != null) {
+        result.close();
+      }
+      return;
+    }
+    Cursor old = cursor;
+    cursor = result;
+    if (isStarted()) {
+      super.deliverResult(result);
+    }
+    if (old != null && old != result && !old.isClosed()) {
+      old.close();
+    }
+  }
+
+  @Override
+  protected void onStartLoading() {
+    if (cursor != null) {
+      deliverResult(cursor);
+    }
+    if (takeContentChanged() || cursor == null) {
+      forceLoad();
+    }
+  }
+
+  @Override
+  protected void onStopLoading() {
+    cancelLoad();
+  }
+
+  @Override
+  public void onCanceled(Cursor result) {
+    if (result != null && !result.isClosed()) {
+      result.close();
+    }
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+    onStopLoading();
+    if (cursor != null && !cursor.isClosed()) {
+      cursor.close();
+    }
+    cursor = null;
+  }
+}
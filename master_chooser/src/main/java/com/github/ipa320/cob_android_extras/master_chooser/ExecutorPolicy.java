@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.util.Log;
+
+import com.google.common.base.Preconditions;
+
+import org.ros.concurrent.DefaultScheduledExecutorService;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Describes the thread pools a {@link NodeMainExecutorService} runs its nodes
+ * on.
+ * <p/>
+ * Every lane gets a pool for submitted tasks with {@code corePoolSize} to
+ * {@code maxPoolSize} threads and a pool of {@code scheduledPoolSize} threads
+ * for scheduled tasks. A submitted task always gets an idle or a new thread
+ * as long as the pool has fewer than {@code maxPoolSize} threads; only then up
+ * to {@code queueCapacity} tasks wait for a thread to become free. Once both
+ * are exhausted the task is rejected with a
+ * {@link RejectedExecutionException}, which is logged and counted in the
+ * metrics. The submitting thread never runs the task itself: it may be the UI
+ * thread or a network thread, and many nodes run endless loops on these pools.
+ * For the same reason {@code maxPoolSize} must be well above the number of
+ * such loops.
+ * <p/>
+ * Pass it to the service with {@link RosActivity#getExecutorPolicy()} or as
+ * the {@link NodeMainExecutorService#EXTRA_EXECUTOR_POLICY} extra.
+ */
+public class ExecutorPolicy implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String TAG = "ExecutorPolicy";
+
+  /**
+   * Separate pools for nodes of different importance. Only used if priority
+   * lanes are enabled, otherwise every node runs in {@link #DEFAULT}.
+   */
+  public enum Lane {
+    /**
+     * Control loops which must not be delayed by other nodes.
+     */
+    CONTROL(Thread.MAX_PRIORITY - 1),
+    DEFAULT(Thread.NORM_PRIORITY),
+    /**
+     * Logging, visualization and other nodes which may lag behind.
+     */
+    BACKGROUND(Thread.MIN_PRIORITY + 1);
+
+    private final int threadPriority;
+
+    Lane(int threadPriority) {
+      this.threadPriority = threadPriority;
+    }
+
+    public int getThreadPriority() {
+      return threadPriority;
+    }
+  }
+
+  private int corePoolSize;
+  private int maxPoolSize;
+  private int queueCapacity;
+  private int scheduledPoolSize;
+  private long keepAliveMillis;
+  private String threadNamePrefix;
+  private boolean priorityLanes;
+
+  /**
+   * @return a policy sized for the processors of this device
+   */
+  public static ExecutorPolicy newDefault() {
+    return newForProcessors(Runtime.getRuntime().availableProcessors());
+  }
+
+  public static ExecutorPolicy newForProcessors(int processors) {
+    Preconditions.checkArgument(processors > 0);
+    ExecutorPolicy policy = new ExecutorPolicy();
+    policy.corePoolSize = processors * 2;
+    policy.maxPoolSize = Math.max(64, processors * 8);
+    policy.queueCapacity = 0;
+    policy.scheduledPoolSize = Math.max(2, processors);
+    policy.keepAliveMillis = 30 * 1000;
+    policy.threadNamePrefix = "NodeMainExecutor";
+    policy.priorityLanes = false;
+    return policy;
+  }
+
+  private ExecutorPolicy() {
+  }
+
+  public ExecutorPolicy setCorePoolSize(int corePoolSize) {
+    Preconditions.checkArgument(corePoolSize >= 0);
+    this.corePoolSize = corePoolSize;
+    return this;
+  }
+
+  public ExecutorPolicy setMaxPoolSize(int maxPoolSize) {
+    Preconditions.checkArgument(maxPoolSize > 0);
+    this.maxPoolSize = maxPoolSize;
+    return this;
+  }
+
+  /**
+   * @param queueCapacity 0 to hand tasks directly to a thread
+   */
+  public ExecutorPolicy setQueueCapacity(int queueCapacity) {
+    Preconditions.checkArgument(queueCapacity >= 0);
+    this.queueCapacity = queueCapacity;
+    return this;
+  }
+
+  public ExecutorPolicy setScheduledPoolSize(int scheduledPoolSize) {
+    Preconditions.checkArgument(scheduledPoolSize > 0);
+    this.scheduledPoolSize = scheduledPoolSize;
+    return this;
+  }
+
+  public ExecutorPolicy setKeepAliveMillis(long keepAliveMillis) {
+    Preconditions.checkArgument(keepAliveMillis >= 0);
+    this.keepAliveMillis = keepAliveMillis;
+    return this;
+  }
+
+  public ExecutorPolicy setThreadNamePrefix(String threadNamePrefix) {
+    this.threadNamePrefix = Preconditions.checkNotNull(threadNamePrefix);
+    return this;
+  }
+
+  public ExecutorPolicy setPriorityLanes(boolean priorityLanes) {
+    this.priorityLanes = priorityLanes;
+    return this;
+  }
+
+  public int getCorePoolSize() {
+    return corePoolSize;
+  }
+
+  public int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public int getScheduledPoolSize() {
+    return scheduledPoolSize;
+  }
+
+  public long getKeepAliveMillis() {
+    return keepAliveMillis;
+  }
+
+  public String getThreadNamePrefix() {
+    return threadNamePrefix;
+  }
+
+  public boolean hasPriorityLanes() {
+    return priorityLanes;
+  }
+
+  /**
+   * @return the lane nodes asking for the given lane actually run in
+   */
+  public Lane resolve(Lane lane) {
+    return priorityLanes ? lane : Lane.DEFAULT;
+  }
+
+  /**
+   * Creates the pools for one lane.
+   *
+   * @param pools receives the created pools so that their load can be reported
+   */
+  ScheduledExecutorService newScheduledExecutorService(Lane lane, List<ThreadPoolExecutor> pools) {
+    Preconditions.checkArgument(maxPoolSize >= corePoolSize);
+    String name = threadNamePrefix + "-" + lane.name().toLowerCase();
+    BlockingQueue<Runnable> queue = queueCapacity == 0
+        ? new SynchronousQueue<Runnable>()
+        : new GrowFirstQueue(queueCapacity);
+    ThreadPoolExecutor executorPool = new ThreadPoolExecutor(corePoolSize, maxPoolSize,
+        keepAliveMillis, TimeUnit.MILLISECONDS, queue, newThreadFactory(name, lane),
+        new RejectingPolicy(name));
+    if (queue instanceof GrowFirstQueue) {
+      ((GrowFirstQueue) queue).executor = executorPool;
+    }
+    ScheduledThreadPoolExecutor scheduledPool = new ScheduledThreadPoolExecutor(scheduledPoolSize,
+        newThreadFactory(threadNamePrefix + "-" + lane.name().toLowerCase() + "-scheduled", lane));
+    pools.add(executorPool);
+    pools.add(scheduledPool);
+    return new DefaultScheduledExecutorService(executorPool, scheduledPool);
+  }
+
+  /**
+   * Rejects tasks of a saturated pool with a descriptive error and counts
+   * them.
+   */
+  static final class RejectingPolicy implements RejectedExecutionHandler {
+
+    private final String name;
+    private final AtomicLong rejected;
+
+    RejectingPolicy(String name) {
+      this.name = name;
+      rejected = new AtomicLong();
+    }
+
+    long getRejectedCount() {
+      return rejected.get();
+    }
+
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      rejected.incrementAndGet();
+      String message = "Pool " + name + " is saturated with " + executor.getActiveCount()
+          + " busy threads and " + executor.getQueue().size()
+          + " queued tasks, raise the maximum pool size of the ExecutorPolicy.";
+      Log.e(TAG, message);
+      throw new RejectedExecutionException(message);
+    }
+  }
+
+  /**
+   * Queues a task only if no thread is idle and the pool cannot grow anymore.
+   * A plain bounded queue would hold tasks back while the core threads are
+   * busy, and a queued endless loop would never start.
+   */
+  private static final class GrowFirstQueue extends LinkedBlockingQueue<Runnable> {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient ThreadPoolExecutor executor;
+
+    GrowFirstQueue(int capacity) {
+      super(capacity);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+      if (executor != null && executor.getActiveCount() >= executor.getPoolSize()
+          && executor.getPoolSize() < executor.getMaximumPoolSize()) {
+        // Makes the executor start a new thread.
+        return false;
+      }
+      return super.offer(task);
+    }
+  }
+
+  private static ThreadFactory newThreadFactory(final String name, final Lane lane) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setPriority(lane.getThreadPriority());
+        return thread;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "ExecutorPolicy[core=" + corePoolSize + " max=" + maxPoolSize + " queue=" + queueCapacity
+        + " scheduled=" + scheduledPoolSize + " lanes=" + priorityLanes + "]";
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import org.ros.address.InetAddressFactory;
+import org.ros.exception.RosRuntimeException;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide cache for host name lookups and for the local host address
+ * which is advertised to the master.
+ * <p/>
+ * Successful lookups are kept for {@link #POSITIVE_TTL_MILLIS}, failed lookups
+ * for {@link #NEGATIVE_TTL_MILLIS}. Concurrent lookups of the same host share a
+ * single request. Everything is dropped when the network changes, see
+ * {@link NetworkChangeReceiver}.
+ */
+public final class HostResolver {
+
+  private static final String TAG = "HostResolver";
+
+  static final long POSITIVE_TTL_MILLIS = 60 * 1000;
+  static final long NEGATIVE_TTL_MILLIS = 5 * 1000;
+
+  private static final HostResolver INSTANCE = new HostResolver();
+
+  private final ConcurrentMap<String, Lookup> lookups;
+  private final Map<String, HostAddress> hostAddresses;
+
+  /**
+   * Invalidates the {@link HostResolver} whenever connectivity changes.
+   * Register it for {@link android.net.ConnectivityManager#CONNECTIVITY_ACTION}.
+   */
+  public static class NetworkChangeReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      Log.i(TAG, "Network changed, invalidating cached addresses.");
+      getInstance().invalidate();
+    }
+  }
+
+  public static HostResolver getInstance() {
+    return INSTANCE;
+  }
+
+  private HostResolver() {
+    lookups = new ConcurrentHashMap<String, Lookup>();
+    hostAddresses = new HashMap<String, HostAddress>();
+  }
+
+  /**
+   * Resolves all addresses of the given host, using the cache if possible.
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    while (true) {
+      Lookup lookup = lookups.get(host);
+      if (lookup == null || lookup.isExpired()) {
+        Lookup fresh = new Lookup(host);
+        boolean installed = lookup == null
+            ? lookups.putIfAbsent(host, fresh) == null
+            : lookups.replace(host, lookup, fresh);
+        if (!installed) {
+          // Somebody else started a lookup in the meantime, use that one.
+          continue;
+        }
+        fresh.run();
+        lookup = fresh;
+      }
+      return lookup.getAddresses();
+    }
+  }
+
+  /**
+   * @param interfaceName the name of the network interface to use, or
+   *        {@code null} or an empty string for the default one
+   * @return the non-loopback host address of the given interface
+   */
+  public String getHostAddress(String interfaceName) {
+    String key = interfaceName == null ? "" : interfaceName;
+    synchronized (hostAddresses) {
+      HostAddress cached = hostAddresses.get(key);
+      if (cached != null && !cached.isExpired()) {
+        return cached.address;
+      }
+    }
+    String address;
+    if (key.equals("")) {
+      address = InetAddressFactory.newNonLoopback().getHostAddress();
+    } else {
+      try {
+        NetworkInterface networkInterface = NetworkInterface.getByName(key);
+        address = InetAddressFactory.newNonLoopbackForNetworkInterface(networkInterface)
+            .getHostAddress();
+      } catch (SocketException e) {
+        throw new RosRuntimeException(e);
+      }
+    }
+    synchronized (hostAddresses) {
+      hostAddresses.put(key, new HostAddress(address));
+    }
+    return address;
+  }
+
+  /**
+   * Drops all cached lookups and host addresses.
+   */
+  public void invalidate() {
+    lookups.clear();
+    synchronized (hostAddresses) {
+      hostAddresses.clear();
+    }
+  }
+
+  private static long deadlineAfter(long millis) {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  private static final class Lookup extends FutureTask<InetAddress[]> {
+
+    private final String host;
+    private volatile long expiresAt;
+
+    Lookup(final String host) {
+      super(new Callable<InetAddress[]>() {
+        @Override
+        public InetAddress[] call() throws UnknownHostException {
+          return InetAddress.getAllByName(host);
+        }
+      });
+      this.host = host;
+    }
+
+    @Override
+    protected void set(InetAddress[] addresses) {
+      expiresAt = deadlineAfter(POSITIVE_TTL_MILLIS);
+      super.set(addresses);
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+      expiresAt = deadlineAfter(NEGATIVE_TTL_MILLIS);
+      super.setException(t);
+    }
+
+    boolean isExpired() {
+      return isDone() && System.nanoTime() - expiresAt >= 0;
+    }
+
+    InetAddress[] getAddresses() throws UnknownHostException {
+      try {
+        return get().clone();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new UnknownHostException(host + " (interrupted)");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof UnknownHostException) {
+          throw (UnknownHostException) e.getCause();
+        }
+        throw new UnknownHostException(host + " (" + e.getCause() + ")");
+      }
+    }
+  }
+
+  private static final class HostAddress {
+
+    private final String address;
+    private final long expiresAt;
+
+    HostAddress(String address) {
+      this.address = address;
+      expiresAt = deadlineAfter(POSITIVE_TTL_MILLIS);
+    }
+
+    boolean isExpired() {
+      return System.nanoTime() - expiresAt >= 0;
+    }
+  }
+}
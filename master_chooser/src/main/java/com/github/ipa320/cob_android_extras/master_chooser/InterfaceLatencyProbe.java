@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip to a master from each local network interface.
+ * <p/>
+ * For every interface a TCP connection to the master port is opened from an
+ * address of that interface, the time until the connection is established is
+ * one round trip. All interfaces are measured in parallel.
+ * <p/>
+ * Binding the source address does not pin the outgoing interface: Linux
+ * follows the weak host model and routes the packets by the routing table, so
+ * two interfaces with a route to the master may well measure the same path,
+ * and an interface without a route fails even if the master could be reached
+ * through it. Pinning the interface needs {@code SO_BINDTODEVICE} (root) or
+ * {@code Network.bindSocket()} (API 21), neither of which is available here.
+ * The nodes bind their sockets the same way, so the measurement still tells
+ * what they will see.
+ */
+final class InterfaceLatencyProbe {
+
+  static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+  /**
+   * Marks an interface from which the master could not be reached.
+   */
+  static final long UNREACHABLE = -1;
+
+  private InterfaceLatencyProbe() {
+    // Utility class.
+  }
+
+  /**
+   * @return all interfaces which are up and not a loopback
+   */
+  static List<NetworkInterface> candidateInterfaces() throws SocketException {
+    List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+    for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+      if (networkInterface.isUp() && !networkInterface.isLoopback()) {
+        interfaces.add(networkInterface);
+      }
+    }
+    return interfaces;
+  }
+
+  /**
+   * @return the round trip in milliseconds per interface name, or
+   *         {@link #UNREACHABLE}
+   */
+  static Map<String, Long> measure(final InetAddress master, final int port,
+                                   List<NetworkInterface> interfaces)
+      throws InterruptedException {
+    Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+    if (interfaces.isEmpty()) {
+      return latencies;
+    }
+    ExecutorService executorService = Executors.newFixedThreadPool(interfaces.size());
+    try {
+      Map<String, Future<Long>> futures = new LinkedHashMap<String, Future<Long>>();
+      for (final NetworkInterface networkInterface : interfaces) {
+        futures.put(networkInterface.getName(), executorService.submit(new Callable<Long>() {
+          @Override
+          public Long call() {
+            return measure(master, port, networkInterface);
+          }
+        }));
+      }
+      for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+        try {
+          latencies.put(entry.getKey(), entry.getValue().get());
+        } catch (ExecutionException e) {
+          latencies.put(entry.getKey(), UNREACHABLE);
+        }
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+    return latencies;
+  }
+
+  /**
+   * @return the name of the interface with the lowest round trip, or
+   *         {@code null} if the master is unreachable from all of them
+   */
+  static String fastest(Map<String, Long> latencies) {
+    String fastest = null;
+    long best = Long.MAX_VALUE;
+    for (Map.Entry<String, Long> entry : latencies.entrySet()) {
+      long latency = entry.getValue();
+      if (latency != UNREACHABLE && latency < best) {
+        best = latency;
+        fastest = entry.getKey();
+      }
+    }
+    return fastest;
+  }
+
+  private static long measure(InetAddress master, int port, NetworkInterface networkInterface) {
+    InetAddress local = localAddressFor(master, networkInterface);
+    if (local == null) {
+      return UNREACHABLE;
+    }
+    Socket socket = new Socket();
+    try {
+      socket.bind(new InetSocketAddress(local, 0));
+      long start = System.nanoTime();
+      socket.connect(new InetSocketAddress(master, port), CONNECT_TIMEOUT_MILLIS);
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    } catch (IOException e) {
+      return UNREACHABLE;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  /**
+   * @return an address of the interface of the same family as the master
+   */
+  private static InetAddress localAddressFor(InetAddress master, NetworkInterface networkInterface) {
+    boolean ipv4 = master instanceof Inet4Address;
+    for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+      if ((address instanceof Inet4Address) == ipv4 && !address.isLoopbackAddress()
+          && (ipv4 || !address.isLinkLocalAddress() || master.isLinkLocalAddress())) {
+        return address;
+      }
+    }
+    return null;
+  }
+}
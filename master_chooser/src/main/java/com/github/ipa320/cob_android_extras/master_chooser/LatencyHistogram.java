@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe latency histogram with a fixed memory footprint.
+ * <p/>
+ * Values are recorded in microseconds. Values below 16 us get a bucket each,
+ * above that every power of two is split into four buckets, so percentiles are
+ * accurate to about 25 %. Recording never allocates.
+ */
+public class LatencyHistogram {
+
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Octaves 4 (16 us) up to 62 are split into sub buckets.
+  private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets;
+  private final AtomicLong count;
+  private final AtomicLong max;
+
+  /**
+   * Immutable view of a {@link LatencyHistogram} at one point in time. All
+   * values are in milliseconds.
+   */
+  public static final class Snapshot {
+
+    private final long count;
+    private final double p50;
+    private final double p99;
+    private final double max;
+
+    Snapshot(long count, double p50, double p99, double max) {
+      this.count = count;
+      this.p50 = p50;
+      this.p99 = p99;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getP50Millis() {
+      return p50;
+    }
+
+    public double getP99Millis() {
+      return p99;
+    }
+
+    public double getMaxMillis() {
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("n=%d p50=%.1fms p99=%.1fms max=%.1fms", count, p50, p99, max);
+    }
+  }
+
+  public LatencyHistogram() {
+    buckets = new AtomicLongArray(BUCKET_COUNT);
+    count = new AtomicLong();
+    max = new AtomicLong();
+  }
+
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    buckets.incrementAndGet(bucketIndex(micros));
+    count.incrementAndGet();
+    long currentMax;
+    do {
+      currentMax = max.get();
+    } while (micros > currentMax && !max.compareAndSet(currentMax, micros));
+  }
+
+  public void recordNanos(long nanos) {
+    record(nanos / 1000);
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return an upper bound for the given percentile in microseconds
+   */
+  public long getPercentileMicros(double percentile) {
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += buckets.get(i);
+      if (seen >= Math.max(rank, 1)) {
+        return Math.min(bucketUpperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public long getMaxMicros() {
+    return max.get();
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(count.get(), getPercentileMicros(50) / 1000.0,
+        getPercentileMicros(99) / 1000.0, max.get() / 1000.0);
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    max.set(0);
+  }
+
+  static int bucketIndex(long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (int) micros;
+    }
+    int octave = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (octave - 4) * SUB_BUCKETS + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < LINEAR_BUCKETS) {
+      return index;
+    }
+    int octave = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long lower = (1L << octave) + ((long) subBucket << (octave - SUB_BUCKET_BITS));
+    return lower + (1L << (octave - SUB_BUCKET_BITS)) - 1;
+  }
+}
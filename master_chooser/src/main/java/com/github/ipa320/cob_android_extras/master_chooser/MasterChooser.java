@@ -24,25 +24,33 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.app.LoaderManager;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Environment;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
@@ -57,23 +65,28 @@ import android.widget.ListView;
 
 import com.github.ipa320.cob_android_extras.master_chooser.R;
 import org.ros.exception.RosRuntimeException;
-import org.ros.internal.node.client.MasterClient;
-import org.ros.internal.node.xmlrpc.XmlRpcTimeoutException;
-import org.ros.namespace.GraphName;
 import org.ros.node.NodeConfiguration;
 
+import java.io.File;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Allows the user to configue a master {@link URI} then it returns that
@@ -87,7 +100,8 @@ import java.util.List;
  * @author munjaldesai@google.com (Munjal Desai)
  * @author benjamin.maidel@ipa.fraunhofer.de (Benjamin Maidel)
  */
-public class MasterChooser extends ListActivity implements AdapterView.OnItemSelectedListener {
+public class MasterChooser extends ListActivity implements AdapterView.OnItemSelectedListener,
+    LoaderManager.LoaderCallbacks<Cursor> {
 
   /**
    * The key with which the last used {@link URI} will be stored as a
@@ -95,23 +109,111 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
    */
   private static final String PREFS_KEY_NAME = "URI_KEY";
 
+  /**
+   * The key with which the title of the last used {@link URI} is stored.
+   */
+  private static final String PREFS_KEY_TITLE = "TITLE_KEY";
+
+  /**
+   * Optional boolean extra. If {@code true} the chooser returns the last used
+   * master right away as soon as it answers, without waiting for the user.
+   */
+  public static final String EXTRA_AUTO_CONNECT = "ROS_MASTER_AUTO_CONNECT";
+
   /**
    * Package name of the QR code reader used to scan QR codes.
    */
   private static final String BAR_CODE_SCANNER_PACKAGE_NAME =
       "com.google.zxing.client.android.SCAN";
 
+  /**
+   * Entry of the interface list which picks the interface with the lowest
+   * round trip to the chosen master.
+   */
+  private static final String AUTO_INTERFACE = "auto";
+
   private String selectedInterface;
+  private String measuredInterface = "";
+  private final Map<String, Long> interfaceLatencies = new HashMap<String, Long>();
+  // Round trip per interface of every reachable master measured so far, shown
+  // in its row. Only touched on the UI thread.
+  private final Map<String, Map<String, Long>> masterInterfaceLatencies =
+      new HashMap<String, Map<String, Long>>();
+  private final Set<String> measuringInterfaces = new HashSet<String>();
+  // Masters found by the discovery which are not saved. They are listed below
+  // the saved ones until the user connects to or saves them.
+  private final Map<String, ProbeResult> discoveredMasters = new LinkedHashMap<String, ProbeResult>();
+  private Cursor savedConnections;
+  private final Set<String> savedUrls = new HashSet<String>();
+  private ExecutorService latencyExecutor;
+  private StableArrayAdapter interfacesAdapter;
   private String masterUri = "";
   private String masterTitle = "";
+  private InetAddress masterAddress;
 
   private static final int ADD_ID = Menu.FIRST + 1;
   private static final int SCAN_ID = Menu.FIRST + 2;
   private static final int EDIT_ID = Menu.FIRST + 3;
   private static final int DELETE_ID = Menu.FIRST + 4;
+  private static final int DISCOVER_ID = Menu.FIRST + 5;
+  private static final int IMPORT_ID = Menu.FIRST + 6;
+  private static final int EXPORT_ID = Menu.FIRST + 7;
+  private static final int SAVE_ID = Menu.FIRST + 8;
+
+  /**
+   * File on the external storage which connections are imported from and
+   * exported to.
+   */
+  private static final String TRANSFER_FILE_NAME = "ros_masters.csv";
+
+  /**
+   * Optional int array extra with ports to scan in addition to 11311 when
+   * discovering masters.
+   */
+  public static final String EXTRA_DISCOVERY_PORTS = "ROS_MASTER_DISCOVERY_PORTS";
+
+  private static final int CONNECTIONS_LOADER_ID = 0;
+  private static final String ARG_FILTER = "filter";
+
+  /**
+   * Instance state key of the parts of a QR code sequence scanned so far.
+   */
+  private static final String STATE_QR_PARTS = "qr_parts";
+  private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
   private ConnectionDatabaseHelper db = null;
-  private Cursor connectionsCursor = null;
-  private ListAdapter adapter;
+  private ConnectionWriter writer;
+  private boolean mastersProbed;
+  private ConnectionAdapter adapter;
+  private MasterProber prober;
+  private MasterProber selectionProber;
+  private StatusRefresher refresher;
+  private Future<ProbeResult> pendingSelection;
+  private int selectionGeneration;
+  private MasterDiscovery discovery;
+  private final Map<String, ProbeResult> probeResults = new HashMap<String, ProbeResult>();
+  private String lastUsedTitle;
+  private ProbeResult lastUsedResult;
+  private final Handler searchHandler = new Handler();
+  private final QrPayload.Assembler qrAssembler = new QrPayload.Assembler();
+
+  private final MasterProber.Callback probeCallback = new MasterProber.Callback() {
+    @Override
+    public void onProbeResult(final ProbeResult result) {
+      writer.updateProbeResult(result);
+      refresher.markProbed(result.getMasterUri());
+      runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          probeResults.put(result.getMasterUri(), result);
+          updateStatus(result.getMasterUri());
+          if (result.isReachable() && AUTO_INTERFACE.equals(selectedInterface)) {
+            measureInterfaces(result, null);
+          }
+        }
+      });
+    }
+  };
 
   private class StableArrayAdapter extends ArrayAdapter<String> {
 
@@ -134,11 +236,46 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
     public boolean hasStableIds() {
       return true;
     }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+      TextView view = (TextView) super.getView(position, convertView, parent);
+      Long latency = interfaceLatencies.get(getItem(position));
+      if (latency != null) {
+        view.setText(getItem(position) + (latency == InterfaceLatencyProbe.UNREACHABLE
+            ? " (unreachable)" : " (" + latency + " ms)"));
+      }
+      return view;
+    }
+  }
+
+  /**
+   * Shows the cached reachability of each connection below its URL.
+   */
+  private class ConnectionAdapter extends SimpleCursorAdapter {
+
+    public ConnectionAdapter(Context context) {
+      // The ConnectionsLoader delivers the cursors, no content observer.
+      super(context, R.layout.connection_list_item, null,
+          new String[]{ConnectionDatabaseHelper.TITLE, ConnectionDatabaseHelper.URL},
+          new int[]{R.id.conn_list_item_title, R.id.conn_list_item_url}, 0);
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+      super.bindView(view, context, cursor);
+      String url = cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.URL));
+      TextView status = (TextView) view.findViewById(R.id.conn_list_item_status);
+      ProbeResult result = probeResults.get(url);
+      status.setText(withInterfaceLatencies(url,
+          result != null ? formatStatus(result) : formatStoredStatus(cursor)));
+    }
   }
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    StartupTrace.getInstance().mark(StartupTrace.Phase.CHOOSER_CREATED);
     setContentView(R.layout.master_chooser);
     ActionBar ab = getActionBar();
 
@@ -158,31 +295,79 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
       button_qr.setOnClickListener(new View.OnClickListener() {
         @Override
         public void onClick(View v) {
-          IntentIntegrator integrator = new IntentIntegrator(MasterChooser.this);
-          integrator.initiateScan(IntentIntegrator.QR_CODE_TYPES);
+          scanQrCode();
         }
       });
     }
 
     this.getListView().setOnItemSelectedListener(this);
 
+    if (savedInstanceState != null) {
+      qrAssembler.restoreState(savedInstanceState.getStringArray(STATE_QR_PARTS));
+    }
+
     db = new ConnectionDatabaseHelper(this);
-    connectionsCursor = db
-        .getReadableDatabase()
-        .rawQuery("SELECT _ID, title, value " +
-                "FROM connections ORDER BY title",
-            null);
-
-    adapter = new SimpleCursorAdapter(this,
-        R.layout.connection_list_item, connectionsCursor,
-        new String[]{ConnectionDatabaseHelper.TITLE,
-            ConnectionDatabaseHelper.URL},
-        new int[]{R.id.conn_list_item_title, R.id.conn_list_item_url});
+    writer = new ConnectionWriter(db, new ConnectionWriter.Listener() {
+      @Override
+      public void onCommitted(int writes, boolean listChanged) {
+        if (listChanged) {
+          runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+              reloadConnections();
+            }
+          });
+        }
+      }
+
+      @Override
+      public void onWriteFailed(RuntimeException e) {
+        toast("Could not save a change: " + e.getMessage(), Toast.LENGTH_LONG);
+      }
+    });
+    adapter = new ConnectionAdapter(this);
     this.setListAdapter(adapter);
     this.registerForContextMenu(getListView());
 
+    prober = new MasterProber();
+    selectionProber = new MasterProber(2, MasterProber.DEFAULT_DEADLINE_MILLIS);
+    latencyExecutor = Executors.newSingleThreadExecutor();
+    refresher = new StatusRefresher(prober, probeCallback);
+    getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+      @Override
+      public void onScrollStateChanged(AbsListView view, int scrollState) {
+      }
+
+      @Override
+      public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                           int totalItemCount) {
+        refresher.setVisible(getUrls(firstVisibleItem, visibleItemCount));
+      }
+    });
+    // Probe the last used master before all others, it is the one most
+    // likely to be chosen.
+    probeLastUsedMaster();
+    getLoaderManager().initLoader(CONNECTIONS_LOADER_ID, null, this);
+    ((EditText) findViewById(R.id.master_chooser_search)).addTextChangedListener(new TextWatcher() {
+      @Override
+      public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+      }
+
+      @Override
+      public void onTextChanged(CharSequence s, int start, int before, int count) {
+      }
+
+      @Override
+      public void afterTextChanged(Editable s) {
+        // Only query once the user pauses typing.
+        searchHandler.removeCallbacks(search);
+        searchHandler.postDelayed(search, SEARCH_DEBOUNCE_MILLIS);
+      }
+    });
+
     ListView interfacesList = (ListView) findViewById(R.id.networkInterfaces);
     final List<String> list = new ArrayList<String>();
+    list.add(AUTO_INTERFACE);
 
     try {
       for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
@@ -197,17 +382,325 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
     // Fallback to previous behaviour when no interface is selected.
     selectedInterface = "";
 
-    final StableArrayAdapter adapter = new StableArrayAdapter(this, android.R.layout.simple_list_item_1, list);
-    interfacesList.setAdapter(adapter);
+    interfacesAdapter = new StableArrayAdapter(this, android.R.layout.simple_list_item_1, list);
+    interfacesList.setAdapter(interfacesAdapter);
 
     interfacesList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
       @Override
       public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         selectedInterface = parent.getItemAtPosition(position).toString();
+        if (AUTO_INTERFACE.equals(selectedInterface)) {
+          // Measure the masters known to be reachable so that their rows show
+          // the round trip per interface before one is chosen.
+          for (ProbeResult result : probeResults.values()) {
+            if (result.isReachable()) {
+              measureInterfaces(result, null);
+            }
+          }
+        }
       }
     });
   }
 
+  @Override
+  protected void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    // The scanner activity may replace this one while a sequence is scanned.
+    outState.putStringArray(STATE_QR_PARTS, qrAssembler.saveState());
+  }
+
+  @Override
+  protected void onResume() {
+    super.onResume();
+    refresher.start();
+  }
+
+  @Override
+  protected void onPause() {
+    refresher.stop();
+    super.onPause();
+  }
+
+  @Override
+  protected void onDestroy() {
+    searchHandler.removeCallbacks(search);
+    refresher.shutdown();
+    latencyExecutor.shutdownNow();
+    prober.shutdown();
+    selectionProber.shutdown();
+    if (discovery != null) {
+      discovery.cancel();
+    }
+    // Closes the loader's cursors before the database goes away, the loader
+    // manager itself only does so after onDestroy has returned.
+    getLoaderManager().destroyLoader(CONNECTIONS_LOADER_ID);
+    // Closes the database once the queued writes are applied, without holding
+    // up the UI thread.
+    writer.close();
+    super.onDestroy();
+  }
+
+  @Override
+  public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+    return new ConnectionsLoader(this, db, args == null ? null : args.getString(ARG_FILTER));
+  }
+
+  @Override
+  public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    savedConnections = cursor;
+    List<String> urls = new ArrayList<String>(cursor.getCount());
+    Map<String, Long> probed = new HashMap<String, Long>();
+    int urlColumn = cursor.getColumnIndex(ConnectionDatabaseHelper.URL);
+    int probedColumn = cursor.getColumnIndex(ConnectionDatabaseHelper.LAST_PROBED);
+    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+      String url = cursor.getString(urlColumn);
+      urls.add(url);
+      if (!cursor.isNull(probedColumn)) {
+        probed.put(url, cursor.getLong(probedColumn));
+      }
+    }
+    refresher.setConnections(urls, probed);
+    if (!mastersProbed) {
+      mastersProbed = true;
+      probeAllMasters(urls);
+    }
+    savedUrls.clear();
+    savedUrls.addAll(urls);
+    showConnections();
+  }
+
+  @Override
+  public void onLoaderReset(Loader<Cursor> loader) {
+    savedConnections = null;
+    adapter.swapCursor(null);
+  }
+
+  /**
+   * Shows the saved connections followed by the discovered masters which are
+   * not saved. Discovered rows have negative ids.
+   */
+  private void showConnections() {
+    if (savedConnections == null) {
+      return;
+    }
+    String[] columns = savedConnections.getColumnNames();
+    MatrixCursor discovered = new MatrixCursor(columns);
+    long now = System.currentTimeMillis();
+    long id = -1;
+    for (ProbeResult result : discoveredMasters.values()) {
+      if (savedUrls.contains(result.getMasterUri())) {
+        continue;
+      }
+      Object[] row = new Object[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        String column = columns[i];
+        if (column.equals(ConnectionDatabaseHelper.KEY_ID)) {
+          row[i] = id--;
+        } else if (column.equals(ConnectionDatabaseHelper.TITLE)) {
+          row[i] = getDiscoveredTitle(result);
+        } else if (column.equals(ConnectionDatabaseHelper.URL)) {
+          row[i] = result.getMasterUri();
+        } else if (column.equals(ConnectionDatabaseHelper.RTT)) {
+          row[i] = result.getRoundTripMillis();
+        } else if (column.equals(ConnectionDatabaseHelper.LAST_SEEN)
+            || column.equals(ConnectionDatabaseHelper.LAST_PROBED)) {
+          row[i] = now;
+        } else if (column.equals(ConnectionDatabaseHelper.REACHABLE)) {
+          row[i] = 1;
+        }
+      }
+      discovered.addRow(row);
+    }
+    // The loader owns the saved cursor, the merged one must not be closed.
+    adapter.swapCursor(discovered.getCount() == 0
+        ? savedConnections : new MergeCursor(new Cursor[]{savedConnections, discovered}));
+  }
+
+  private static String getDiscoveredTitle(ProbeResult result) {
+    return "Discovered " + result.getAddress().getHostAddress();
+  }
+
+  private final Runnable search = new Runnable() {
+    @Override
+    public void run() {
+      if (isFinishing()) {
+        return;
+      }
+      String filter = ((EditText) findViewById(R.id.master_chooser_search)).getText().toString();
+      Bundle args = new Bundle();
+      args.putString(ARG_FILTER, filter);
+      // Cancels a query which is still running for a previous filter.
+      getLoaderManager().restartLoader(CONNECTIONS_LOADER_ID, args, MasterChooser.this);
+    }
+  };
+
+  private void reloadConnections() {
+    if (isFinishing()) {
+      return;
+    }
+    Loader<Cursor> loader = getLoaderManager().getLoader(CONNECTIONS_LOADER_ID);
+    if (loader != null) {
+      loader.onContentChanged();
+    }
+  }
+
+  /**
+   * Rebinds the status of the visible rows showing the given master, all
+   * other rows are left alone.
+   */
+  private void updateStatus(String masterUri) {
+    ListView listView = getListView();
+    int first = listView.getFirstVisiblePosition();
+    for (int i = 0; i < listView.getChildCount(); i++) {
+      Cursor cursor = (Cursor) adapter.getItem(first + i);
+      if (cursor != null && masterUri.equals(
+          cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.URL)))) {
+        TextView status = (TextView) listView.getChildAt(i).findViewById(R.id.conn_list_item_status);
+        if (status != null) {
+          status.setText(withInterfaceLatencies(masterUri, formatStatus(probeResults.get(masterUri))));
+        }
+      }
+    }
+  }
+
+  /**
+   * Probes every saved master in parallel. Each row is updated as soon as its
+   * result arrives. Only the first load does this, the refresher keeps the
+   * rows up to date afterwards.
+   */
+  private void probeAllMasters(List<String> masterUris) {
+    for (String masterUri : masterUris) {
+      refresher.markProbed(masterUri);
+    }
+    prober.probeAll(masterUris, probeCallback);
+  }
+
+  /**
+   * @return the URLs of the given range of rows
+   */
+  private List<String> getUrls(int first, int count) {
+    List<String> urls = new ArrayList<String>(count);
+    for (int position = first; position < first + count && position < adapter.getCount(); position++) {
+      Cursor cursor = (Cursor) adapter.getItem(position);
+      if (cursor != null) {
+        urls.add(cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.URL)));
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * Probes the last used master in the background. Once it answers it is
+   * either returned right away (see {@link #EXTRA_AUTO_CONNECT}) or offered
+   * for a one-tap connect. Selecting another master cancels this.
+   */
+  private void probeLastUsedMaster() {
+    SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+    final String lastUsedUri = preferences.getString(PREFS_KEY_NAME, null);
+    if (lastUsedUri == null) {
+      return;
+    }
+    lastUsedTitle = preferences.getString(PREFS_KEY_TITLE, lastUsedUri);
+    final boolean autoConnect = getIntent().getBooleanExtra(EXTRA_AUTO_CONNECT, false);
+    final int generation = selectionGeneration;
+    StartupTrace.getInstance().mark(StartupTrace.Phase.PROBE_START);
+    pendingSelection = selectionProber.probe(lastUsedUri, new MasterProber.Callback() {
+      @Override
+      public void onProbeResult(final ProbeResult result) {
+        probeCallback.onProbeResult(result);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if (generation != selectionGeneration || isFinishing() || !result.isReachable()) {
+              return;
+            }
+            StartupTrace.getInstance().mark(StartupTrace.Phase.PROBE_DONE);
+            if (autoConnect) {
+              connect(lastUsedUri, lastUsedTitle, result);
+              return;
+            }
+            lastUsedResult = result;
+            Button button = (Button) findViewById(R.id.master_chooser_last_used_button);
+            button.setText(getString(R.string.connect_last_used, lastUsedTitle,
+                result.getRoundTripMillis()));
+            button.setVisibility(View.VISIBLE);
+          }
+        });
+      }
+    });
+  }
+
+  public void lastUsedButtonClicked(View unused) {
+    if (lastUsedResult != null) {
+      connect(lastUsedResult.getMasterUri(), lastUsedTitle, lastUsedResult);
+    }
+  }
+
+  /**
+   * Returns the given reachable master to the calling {@link Activity} and
+   * remembers it as the last used one.
+   */
+  private void connect(String uri, String title, ProbeResult result) {
+    masterUri = uri;
+    masterTitle = title;
+    masterAddress = result.getAddress();
+    saveDiscoveredMaster(uri, title);
+    if (AUTO_INTERFACE.equals(selectedInterface) && masterInterfaceLatencies.containsKey(uri)) {
+      showInterfaceLatencies(masterInterfaceLatencies.get(uri));
+    }
+    getPreferences(MODE_PRIVATE).edit()
+        .putString(PREFS_KEY_NAME, uri)
+        .putString(PREFS_KEY_TITLE, title)
+        .apply();
+    writer.markUsed(uri);
+    toast("Connected!", Toast.LENGTH_SHORT);
+    // Package the intent to be consumed by the calling activity.
+    Intent intent = createNewMasterIntent(false, true);
+    setResult(RESULT_OK, intent);
+    finish();
+  }
+
+  private void probeMaster(String masterUri) {
+    probeResults.remove(masterUri);
+    prober.probe(masterUri, probeCallback);
+  }
+
+  /**
+   * Describes the outcome of the last probe as stored with the connection,
+   * until the background refresh probes it again.
+   */
+  private String formatStoredStatus(Cursor cursor) {
+    int probedColumn = cursor.getColumnIndex(ConnectionDatabaseHelper.LAST_PROBED);
+    if (cursor.isNull(probedColumn)) {
+      return getString(R.string.status_probing);
+    }
+    int lastSeenColumn = cursor.getColumnIndex(ConnectionDatabaseHelper.LAST_SEEN);
+    if (cursor.getInt(cursor.getColumnIndex(ConnectionDatabaseHelper.REACHABLE)) != 0) {
+      return getString(R.string.status_stored_reachable,
+          cursor.getLong(cursor.getColumnIndex(ConnectionDatabaseHelper.RTT)),
+          formatTime(cursor.getLong(probedColumn)));
+    }
+    if (cursor.isNull(lastSeenColumn)) {
+      return getString(R.string.status_stored_never_seen);
+    }
+    return getString(R.string.status_stored_unreachable, formatTime(cursor.getLong(lastSeenColumn)));
+  }
+
+  private static CharSequence formatTime(long millis) {
+    return DateUtils.getRelativeTimeSpanString(millis, System.currentTimeMillis(),
+        DateUtils.MINUTE_IN_MILLIS);
+  }
+
+  private String formatStatus(ProbeResult result) {
+    if (result == null) {
+      return getString(R.string.status_probing);
+    }
+    if (result.isReachable()) {
+      return getString(R.string.status_reachable, result.getRoundTripMillis());
+    }
+    return getString(R.string.status_unreachable, result.getError());
+  }
+
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
     MenuItem itemAdd = menu.add(Menu.NONE, ADD_ID, Menu.NONE, "Add")
@@ -215,6 +708,9 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
         .setAlphabeticShortcut('a');
     MenuItem itemScan = menu.add(Menu.NONE, SCAN_ID, Menu.NONE, "Scan")
         .setIcon(R.drawable.ic_action_new_picture);
+    menu.add(Menu.NONE, DISCOVER_ID, Menu.NONE, "Discover");
+    menu.add(Menu.NONE, IMPORT_ID, Menu.NONE, "Import");
+    menu.add(Menu.NONE, EXPORT_ID, Menu.NONE, "Export");
 
     itemAdd.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
     itemScan.setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
@@ -229,9 +725,16 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
         add();
         return (true);
       case SCAN_ID:
-
-        IntentIntegrator integrator = new IntentIntegrator(MasterChooser.this);
-        integrator.initiateScan(IntentIntegrator.QR_CODE_TYPES);
+        scanQrCode();
+        return (true);
+      case DISCOVER_ID:
+        discover();
+        return (true);
+      case IMPORT_ID:
+        importConnections();
+        return (true);
+      case EXPORT_ID:
+        exportConnections();
         return (true);
     }
 
@@ -241,6 +744,10 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
   @Override
   public void onCreateContextMenu(ContextMenu menu, View v,
                                   ContextMenu.ContextMenuInfo menuInfo) {
+    if (((AdapterView.AdapterContextMenuInfo) menuInfo).id < 0) {
+      menu.add(Menu.NONE, SAVE_ID, Menu.NONE, "Save");
+      return;
+    }
     menu.add(Menu.NONE, EDIT_ID, Menu.NONE, "Edit")
         .setAlphabeticShortcut('e');
     menu.add(Menu.NONE, DELETE_ID, Menu.NONE, "Delete")
@@ -253,13 +760,21 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
     switch (item.getItemId()) {
       case EDIT_ID:
         info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
-        edit(info.id);
+        edit(info.id, (Cursor) adapter.getItem(info.position));
         return (true);
 
       case DELETE_ID:
         info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
         delete(info.id);
         return (true);
+
+      case SAVE_ID:
+        info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
+        Cursor cursor = (Cursor) adapter.getItem(info.position);
+        saveDiscoveredMaster(
+            cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.URL)),
+            cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.TITLE)));
+        return (true);
     }
     return (super.onOptionsItemSelected(item));
   }
@@ -291,22 +806,16 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
         .show();
   }
 
-  private void edit(final long rowId) {
+  /**
+   * @param cursor the list cursor, positioned at the row to edit
+   */
+  private void edit(final long rowId, Cursor cursor) {
     LayoutInflater inflater = LayoutInflater.from(this);
     View addView = inflater.inflate(R.layout.add_edit_connection, null);
     final DialogWrapper wrapper = new DialogWrapper(addView);
-    String[] columns = new String[]{
-        ConnectionDatabaseHelper.KEY_ID,
-        ConnectionDatabaseHelper.TITLE,
-        ConnectionDatabaseHelper.URL};
-    Cursor cursor = db.getReadableDatabase().query("connections", columns,
-        ConnectionDatabaseHelper.KEY_ID + "=?", new String[]{String.valueOf(rowId)},
-        null, null, null, null);
-    if (cursor != null)
-      cursor.moveToFirst();
-
-    wrapper.setTitle(cursor.getString(1));
-    wrapper.setUrl(cursor.getString(2));
+
+    wrapper.setTitle(cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.TITLE)));
+    wrapper.setUrl(cursor.getString(cursor.getColumnIndex(ConnectionDatabaseHelper.URL)));
 
     new AlertDialog.Builder(this)
         .setTitle(R.string.add_edit_title)
@@ -351,34 +860,123 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
   }
 
   private void processAdd(DialogWrapper wrapper) {
-    ContentValues values = new ContentValues(2);
-
-    values.put(ConnectionDatabaseHelper.TITLE, wrapper.getTitle());
-    values.put(ConnectionDatabaseHelper.URL, wrapper.getUrl());
+    ContentValues values =
+        ConnectionDatabaseHelper.newConnectionValues(wrapper.getTitle(), wrapper.getUrl());
 
-    db.getWritableDatabase().insert("connections", ConnectionDatabaseHelper.TITLE, values);
-    //refreshListView();
-    connectionsCursor.requery();
+    writer.insert(values);
+    probeMaster(wrapper.getUrl());
   }
 
   private void processEdit(DialogWrapper wrapper, final long rowId) {
-    ContentValues values = new ContentValues(2);
+    ContentValues values =
+        ConnectionDatabaseHelper.newConnectionValues(wrapper.getTitle(), wrapper.getUrl());
 
-    values.put(ConnectionDatabaseHelper.TITLE, wrapper.getTitle());
-    values.put(ConnectionDatabaseHelper.URL, wrapper.getUrl());
-
-    db.getWritableDatabase().update("connections", values, ConnectionDatabaseHelper.KEY_ID + " = ?",
-        new String[]{String.valueOf(rowId)});
-    //refreshListView();
-    connectionsCursor.requery();
+    writer.update(rowId, values);
+    probeMaster(wrapper.getUrl());
   }
 
   private void processDelete(long rowId) {
-    String[] args = {String.valueOf(rowId)};
+    writer.delete(rowId);
+  }
+
+  private File getTransferFile() {
+    return new File(Environment.getExternalStorageDirectory(), TRANSFER_FILE_NAME);
+  }
+
+  private final ConnectionWriter.TransferCallback transferCallback =
+      new ConnectionWriter.TransferCallback() {
+        @Override
+        public void onTransferDone(String summary) {
+          toast(summary, Toast.LENGTH_LONG);
+        }
+      };
+
+  /**
+   * Adds all masters of the transfer file which are not saved yet.
+   */
+  private void importConnections() {
+    File file = getTransferFile();
+    if (!file.exists()) {
+      toast("Put the masters to import into " + file, Toast.LENGTH_LONG);
+      return;
+    }
+    toast("Importing " + file, Toast.LENGTH_SHORT);
+    writer.importCsv(file, transferCallback);
+  }
+
+  private void exportConnections() {
+    writer.exportCsv(getTransferFile(), transferCallback);
+  }
+
+  /**
+   * Scans the subnet of the selected network interface for masters. Every
+   * master found is added to the list as soon as it is confirmed.
+   */
+  private void discover() {
+    NetworkInterface networkInterface = getDiscoveryInterface();
+    if (networkInterface == null) {
+      toast("No network interface to scan.", Toast.LENGTH_SHORT);
+      return;
+    }
+    if (discovery != null) {
+      discovery.cancel();
+    }
+    int[] extraPorts = getIntent().getIntArrayExtra(EXTRA_DISCOVERY_PORTS);
+    int[] ports = MasterDiscovery.DEFAULT_PORTS;
+    if (extraPorts != null) {
+      ports = new int[extraPorts.length + 1];
+      ports[0] = MasterProber.DEFAULT_MASTER_PORT;
+      System.arraycopy(extraPorts, 0, ports, 1, extraPorts.length);
+    }
+    discovery = new MasterDiscovery(ports, MasterDiscovery.DEFAULT_CONCURRENCY);
+    toast("Searching masters on " + networkInterface.getName(), Toast.LENGTH_SHORT);
+    discovery.scan(networkInterface, new MasterDiscovery.Listener() {
+      @Override
+      public void onMasterDiscovered(final ProbeResult result) {
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            addDiscoveredMaster(result);
+          }
+        });
+      }
+
+      @Override
+      public void onDiscoveryFinished(int mastersFound) {
+        toast("Found " + mastersFound + " master(s).", Toast.LENGTH_SHORT);
+      }
+    });
+  }
+
+  private NetworkInterface getDiscoveryInterface() {
+    try {
+      if (!selectedInterface.equals("") && !selectedInterface.equals(AUTO_INTERFACE)) {
+        return NetworkInterface.getByName(selectedInterface);
+      }
+      for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+        if (networkInterface.isUp() && !networkInterface.isLoopback()) {
+          return networkInterface;
+        }
+      }
+    } catch (SocketException e) {
+      Log.e("MasterChooser", "Unable to list network interfaces", e);
+    }
+    return null;
+  }
+
+  private void addDiscoveredMaster(ProbeResult result) {
+    probeResults.put(result.getMasterUri(), result);
+    discoveredMasters.put(result.getMasterUri(), result);
+    showConnections();
+  }
 
-    db.getWritableDatabase().delete("connections", "_ID=?", args);
-    //refreshListView();
-    connectionsCursor.requery();
+  /**
+   * Saves a discovered master, if the given master is one.
+   */
+  private void saveDiscoveredMaster(String uri, String title) {
+    if (discoveredMasters.remove(uri) != null) {
+      writer.insertIfAbsent(ConnectionDatabaseHelper.newConnectionValues(title, uri));
+    }
   }
 
   class DialogWrapper {
@@ -431,146 +1029,217 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
     if (result != null) {
       String contents = result.getContents();
       if (contents != null) {
-        String lines[] = contents.split("[\r\n]+");
-        if (lines.length == 2) {
-          ContentValues values = new ContentValues(2);
-          values.put(ConnectionDatabaseHelper.TITLE, lines[0]);
-          values.put(ConnectionDatabaseHelper.URL, lines[1]);
-
-          db.getWritableDatabase().insert("connections", ConnectionDatabaseHelper.TITLE, values);
-          connectionsCursor.requery();
-        }
+        addScannedConnections(contents);
       }
     }
   }
 
+  /**
+   * Adds the masters of a scanned QR code, see {@link QrPayload}. Codes which
+   * are part of a sequence are collected until all parts have been scanned,
+   * then all masters are added at once.
+   */
+  private void addScannedConnections(String contents) {
+    QrPayload.Part part;
+    try {
+      part = QrPayload.parse(contents);
+    } catch (IllegalArgumentException e) {
+      toast(e.getMessage(), Toast.LENGTH_LONG);
+      return;
+    }
+    if (!qrAssembler.add(part)) {
+      toast("Scanned part " + qrAssembler.getReceived() + " of " + qrAssembler.getCount()
+          + ", scan the next one.", Toast.LENGTH_SHORT);
+      scanQrCode();
+      return;
+    }
+    final List<ContentValues> connections = qrAssembler.getConnections();
+    int invalid = qrAssembler.getInvalid();
+    qrAssembler.reset();
+    if (invalid > 0) {
+      toast("Skipped " + invalid + " invalid line(s)", Toast.LENGTH_SHORT);
+    }
+    writer.insertAllIfAbsent(connections, transferCallback);
+    for (ContentValues values : connections) {
+      probeMaster(values.getAsString(ConnectionDatabaseHelper.URL));
+    }
+  }
+
+  private void scanQrCode() {
+    IntentIntegrator integrator = new IntentIntegrator(MasterChooser.this);
+    integrator.initiateScan(IntentIntegrator.QR_CODE_TYPES);
+  }
+
   @Override
   protected void onListItemClick(ListView l, View v, int position, long id) {
     if (position >= 0) {
-      //Get current cursor
-      // Get the current text entered for URI.
-      TextView tvUri = (TextView) v.findViewById(R.id.conn_list_item_url);
-      masterUri = tvUri.getText().toString();
-      TextView tvTitle = (TextView) v.findViewById(R.id.conn_list_item_title);
-      masterTitle = tvTitle.getText().toString();
-
-      // Make sure the URI can be parsed correctly and that the master is
-      // reachable.
-      new AsyncTask<Void, Void, Boolean>() {
-        @Override
-        protected Boolean doInBackground(Void... params) {
-          try {
-            toast("Trying to reach master at " + masterUri, Toast.LENGTH_LONG);
-            String uri = masterUri.replace("http://","");
-            uri = uri.replace(":11311","");
-            Log.i("MasterChooser", "Trying to reach master at " + uri);
-            InetAddress[] inetAddress = InetAddress.getAllByName(uri);
-            try {
-              Thread.sleep(2000,0);
-            } catch (InterruptedException e) {
-              e.printStackTrace();
-            }
-          } catch(UnknownHostException e){
-            toast("Unknown host: "+e.toString(), Toast.LENGTH_LONG);
-            Log.e("MasterChooser", "Unknown Host: "+e.toString());
-            return false;
-          }
-          try
-          {
-            MasterClient masterClient = new MasterClient(new URI(masterUri));
-            masterClient.getUri(GraphName.of("android/master_chooser_activity"));
-            toast("Connected!", Toast.LENGTH_LONG);
-            return true;
-          } catch (URISyntaxException e) {
-            toast("Invalid URI.", Toast.LENGTH_LONG);
-            return false;
-          } catch (XmlRpcTimeoutException e) {
-            toast("Master unreachable!", Toast.LENGTH_LONG);
-            return false;
-          } catch (RuntimeException e) {
-            toast(e.getMessage(), Toast.LENGTH_LONG);
-            return false;
-          } catch (Exception e){
-            toast(e.getMessage(), Toast.LENGTH_LONG);
-            return false;
-          }
-
-        }
-
-        @Override
-        protected void onPostExecute(Boolean result) {
-          if (result) {
-            // Package the intent to be consumed by the calling activity.
-            Intent intent = createNewMasterIntent(false, true);
-            setResult(RESULT_OK, intent);
-            finish();
-          } else {
-          }
-        }
-      }.execute();
+      selectMaster(v);
     }
   }
 
   @Override
   public void onItemSelected(AdapterView<?> parent, View v, int position, long id) {
     if (position >= 0) {
-      //Get current cursor
-      // Get the current text entered for URI.
-      TextView tvUri = (TextView) v.findViewById(R.id.conn_list_item_url);
-      masterUri = tvUri.getText().toString();
-      TextView tvTitle = (TextView) v.findViewById(R.id.conn_list_item_title);
-      masterTitle = tvTitle.getText().toString();
-
-      // Make sure the URI can be parsed correctly and that the master is
-      // reachable.
-      new AsyncTask<Void, Void, Boolean>() {
-        @Override
-        protected Boolean doInBackground(Void... params) {
-          try {
-            toast("Trying to reach master at " + masterUri, Toast.LENGTH_LONG);
-            String uri = masterUri.replace("http://","");
-            uri = uri.replace(":11311","");
-            Log.i("MasterChooser", "Trying to reach master at " + uri);
-            InetAddress[] inetAddress = InetAddress.getAllByName(uri);
-            try {
-              Thread.sleep(2000,0);
-            } catch (InterruptedException e) {
-              e.printStackTrace();
+      selectMaster(v);
+    }
+  }
+
+  /**
+   * Makes sure the URI of the given row can be parsed correctly and that the
+   * master is reachable, then returns it to the calling {@link Activity}. A
+   * newer selection cancels the probe of the previous one.
+   */
+  private void selectMaster(View v) {
+    // Get the current text entered for URI.
+    TextView tvUri = (TextView) v.findViewById(R.id.conn_list_item_url);
+    final String selectedUri = tvUri.getText().toString();
+    TextView tvTitle = (TextView) v.findViewById(R.id.conn_list_item_title);
+    final String selectedTitle = tvTitle.getText().toString();
+    findViewById(R.id.master_chooser_last_used_button).setVisibility(View.GONE);
+    lastUsedResult = null;
+
+    if (pendingSelection != null) {
+      pendingSelection.cancel(true);
+    }
+    final int generation = ++selectionGeneration;
+    StartupTrace.getInstance().mark(StartupTrace.Phase.PROBE_START);
+    toast("Trying to reach master at " + selectedUri, Toast.LENGTH_SHORT);
+    Log.i("MasterChooser", "Trying to reach master at " + selectedUri);
+    pendingSelection = selectionProber.probe(selectedUri, new MasterProber.Callback() {
+      @Override
+      public void onProbeResult(final ProbeResult result) {
+        probeCallback.onProbeResult(result);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if (generation != selectionGeneration || isFinishing()) {
+              // A newer selection superseded this one.
+              return;
             }
-          } catch(UnknownHostException e){
-            toast("Unknown host: "+e.toString(), Toast.LENGTH_LONG);
-            Log.e("MasterChooser", "Unknown Host: "+e.toString());
-            return false;
-          }
-          try
-          {
-            MasterClient masterClient = new MasterClient(new URI(masterUri));
-            masterClient.getUri(GraphName.of("android/master_chooser_activity"));
-            toast("Connected!", Toast.LENGTH_LONG);
-            return true;
-          } catch (URISyntaxException e) {
-            toast("Invalid URI.", Toast.LENGTH_LONG);
-            return false;
-          } catch (XmlRpcTimeoutException e) {
-            toast("Master unreachable!", Toast.LENGTH_LONG);
-            return false;
+            if (!result.isReachable()) {
+              toast(result.getError(), Toast.LENGTH_LONG);
+              return;
+            }
+            StartupTrace.getInstance().mark(StartupTrace.Phase.PROBE_DONE);
+            if (!AUTO_INTERFACE.equals(selectedInterface)
+                || masterInterfaceLatencies.containsKey(selectedUri)) {
+              connect(selectedUri, selectedTitle, result);
+              return;
+            }
+            // Connect once the interfaces have been measured, the row keeps
+            // showing the result if the selection is superseded meanwhile.
+            measureInterfaces(result, new Runnable() {
+              @Override
+              public void run() {
+                if (generation == selectionGeneration && !isFinishing()) {
+                  connect(selectedUri, selectedTitle, result);
+                }
+              }
+            });
           }
-        }
+        });
+      }
+    });
+  }
 
+  /**
+   * Measures the round trip to a reachable master from every interface on the
+   * latency thread and shows the result in its row. Must be called on the UI
+   * thread.
+   *
+   * @param then
+   *          runs on the UI thread once the measurement is stored, or
+   *          {@code null} to skip masters which are measured already
+   */
+  private void measureInterfaces(final ProbeResult result, final Runnable then) {
+    final String url = result.getMasterUri();
+    if (then == null
+        && (masterInterfaceLatencies.containsKey(url) || measuringInterfaces.contains(url))) {
+      return;
+    }
+    measuringInterfaces.add(url);
+    try {
+      latencyExecutor.execute(new Runnable() {
         @Override
-        protected void onPostExecute(Boolean result) {
-          if (result) {
-            // Package the intent to be consumed by the calling activity.
-            Intent intent = createNewMasterIntent(false, true);
-            setResult(RESULT_OK, intent);
-            finish();
-          } else {
-          }
+        public void run() {
+          final Map<String, Long> latencies = measureInterfacesBlocking(result);
+          runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+              measuringInterfaces.remove(url);
+              masterInterfaceLatencies.put(url, latencies);
+              updateStatus(url);
+              if (then != null) {
+                then.run();
+              }
+            }
+          });
         }
-      }.execute();
+      });
+    } catch (RejectedExecutionException e) {
+      // The chooser is being destroyed.
+      measuringInterfaces.remove(url);
+    }
+  }
+
+  private String withInterfaceLatencies(String url, String status) {
+    Map<String, Long> latencies = masterInterfaceLatencies.get(url);
+    if (latencies == null || latencies.isEmpty()) {
+      return status;
+    }
+    StringBuilder text = new StringBuilder(status).append('\n');
+    for (Map.Entry<String, Long> entry : latencies.entrySet()) {
+      if (text.charAt(text.length() - 1) != '\n') {
+        text.append(", ");
+      }
+      long latency = entry.getValue();
+      text.append(entry.getKey()).append(' ')
+          .append(latency == InterfaceLatencyProbe.UNREACHABLE ? "unreachable" : latency + " ms");
+    }
+    return text.toString();
+  }
+
+  /**
+   * Measures the round trip to the master from every interface. Blocks.
+   */
+  private Map<String, Long> measureInterfacesBlocking(ProbeResult result) {
+    try {
+      int port = MasterProber.parseMasterUri(result.getMasterUri()).getPort();
+      return InterfaceLatencyProbe.measure(result.getAddress(), port,
+          InterfaceLatencyProbe.candidateInterfaces());
+    } catch (URISyntaxException e) {
+      return Collections.emptyMap();
+    } catch (SocketException e) {
+      Log.e("MasterChooser", "Unable to list network interfaces", e);
+      return Collections.emptyMap();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Collections.emptyMap();
     }
   }
 
+  private void showInterfaceLatencies(Map<String, Long> latencies) {
+    interfaceLatencies.clear();
+    interfaceLatencies.putAll(latencies);
+    interfacesAdapter.notifyDataSetChanged();
+    String fastest = InterfaceLatencyProbe.fastest(latencies);
+    measuredInterface = fastest != null ? fastest : "";
+    if (fastest != null) {
+      toast("Using " + fastest + " (" + latencies.get(fastest) + " ms)", Toast.LENGTH_SHORT);
+    }
+  }
+
+  /**
+   * @return the interface the nodes should use, an empty string selects the
+   *         default one
+   */
+  private String getNetworkInterfaceName() {
+    if (selectedInterface.equals(AUTO_INTERFACE)) {
+      return measuredInterface;
+    }
+    return selectedInterface;
+  }
+
   @Override
   public void onNothingSelected(AdapterView<?> adapterView) {
 
@@ -617,7 +1286,12 @@ public class MasterChooser extends ListActivity implements AdapterView.OnItemSel
     intent.putExtra("ROS_MASTER_PRIVATE", isPrivate);
     intent.putExtra("ROS_MASTER_URI", masterUri);
     intent.putExtra("ROS_MASTER_TITLE", masterTitle);
-    intent.putExtra("ROS_MASTER_NETWORK_INTERFACE", selectedInterface);
+    intent.putExtra("ROS_MASTER_NETWORK_INTERFACE", getNetworkInterfaceName());
+    if (masterAddress != null) {
+      // The address which answered first, so that nobody has to resolve the
+      // master host name again.
+      intent.putExtra("ROS_MASTER_ADDRESS", masterAddress.getHostAddress());
+    }
     return intent;
   }
 
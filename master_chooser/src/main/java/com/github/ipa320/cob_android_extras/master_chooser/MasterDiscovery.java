@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans an IPv4 subnet for ROS masters.
+ * <p/>
+ * Every host of the subnet is probed on all configured ports by a bounded pool
+ * of TCP connects. Each open port is confirmed with an XML-RPC {@code getUri}
+ * call through a {@link MasterProber} before it is reported, so results stream
+ * in while the scan is still running. Subnets larger than a
+ * /{@link #MIN_PREFIX_LENGTH} are narrowed to the /{@link #MIN_PREFIX_LENGTH}
+ * around the local address. Every instance runs a single scan, its threads
+ * end once the scan has finished or has been cancelled.
+ */
+public class MasterDiscovery {
+
+  private static final String TAG = "MasterDiscovery";
+
+  static final int[] DEFAULT_PORTS = {MasterProber.DEFAULT_MASTER_PORT};
+  static final int DEFAULT_CONCURRENCY = 64;
+  static final int CONNECT_TIMEOUT_MILLIS = 300;
+  static final int MIN_PREFIX_LENGTH = 24;
+
+  public interface Listener {
+
+    /**
+     * Called on a worker thread for every confirmed master.
+     */
+    void onMasterDiscovered(ProbeResult result);
+
+    /**
+     * Called on a worker thread once all hosts and ports have been probed.
+     */
+    void onDiscoveryFinished(int mastersFound);
+  }
+
+  private final int[] ports;
+  private final ExecutorService executorService;
+  private final MasterProber prober;
+
+  public MasterDiscovery() {
+    this(DEFAULT_PORTS, DEFAULT_CONCURRENCY);
+  }
+
+  public MasterDiscovery(int[] ports, int concurrency) {
+    this.ports = ports.clone();
+    executorService = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    prober = new MasterProber();
+  }
+
+  /**
+   * Scans the subnet of the first IPv4 address of the given interface.
+   *
+   * @return the number of host and port combinations which will be probed
+   */
+  public int scan(NetworkInterface networkInterface, Listener listener) {
+    for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+      if (interfaceAddress.getAddress() instanceof Inet4Address) {
+        return scan(interfaceAddress.getAddress(), interfaceAddress.getNetworkPrefixLength(),
+            listener);
+      }
+    }
+    cancel();
+    listener.onDiscoveryFinished(0);
+    return 0;
+  }
+
+  /**
+   * Scans the subnet the given address belongs to, e.g. 127.0.1.0/24 to find
+   * stand-in masters bound to loopback aliases.
+   *
+   * @return the number of host and port combinations which will be probed
+   */
+  public int scan(InetAddress address, int prefixLength, final Listener listener) {
+    List<InetAddress> hosts = hostsOf(address, Math.max(prefixLength, MIN_PREFIX_LENGTH));
+    final int total = hosts.size() * ports.length;
+    if (total == 0) {
+      cancel();
+      listener.onDiscoveryFinished(0);
+      return 0;
+    }
+    Log.i(TAG, "Scanning " + hosts.size() + " hosts around " + address.getHostAddress());
+    final AtomicInteger pending = new AtomicInteger(total);
+    final AtomicInteger found = new AtomicInteger();
+    final MasterProber.Callback confirmation = new MasterProber.Callback() {
+      @Override
+      public void onProbeResult(ProbeResult result) {
+        if (result.isReachable()) {
+          found.incrementAndGet();
+          listener.onMasterDiscovered(result);
+        }
+        finishOne(pending, found, listener);
+      }
+    };
+    try {
+      for (final InetAddress host : hosts) {
+        for (final int port : ports) {
+          executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+              if (isPortOpen(host, port)) {
+                prober.probe("http://" + host.getHostAddress() + ":" + port + "/", confirmation);
+              } else {
+                finishOne(pending, found, listener);
+              }
+            }
+          });
+        }
+      }
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Discovery was cancelled.");
+    }
+    return total;
+  }
+
+  /**
+   * Stops the scan. Masters which have not been confirmed yet are not
+   * reported anymore.
+   */
+  public void cancel() {
+    executorService.shutdownNow();
+    prober.shutdown();
+  }
+
+  private void finishOne(AtomicInteger pending, AtomicInteger found, Listener listener) {
+    if (pending.decrementAndGet() == 0) {
+      listener.onDiscoveryFinished(found.get());
+      // Every task has finished, only idle threads are left.
+      executorService.shutdown();
+      prober.shutdown();
+    }
+  }
+
+  private static boolean isPortOpen(InetAddress host, int port) {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  /**
+   * @return all host addresses of the subnet, without the network and
+   *         broadcast address
+   */
+  static List<InetAddress> hostsOf(InetAddress address, int prefixLength) {
+    List<InetAddress> hosts = new ArrayList<InetAddress>();
+    if (!(address instanceof Inet4Address) || prefixLength > 30) {
+      return hosts;
+    }
+    byte[] bytes = address.getAddress();
+    int ip = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16)
+        | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    int network = ip & mask;
+    int size = 1 << (32 - prefixLength);
+    for (int i = 1; i < size - 1; i++) {
+      int host = network + i;
+      try {
+        hosts.add(InetAddress.getByAddress(new byte[]{
+            (byte) (host >>> 24), (byte) (host >>> 16), (byte) (host >>> 8), (byte) host}));
+      } catch (UnknownHostException e) {
+        // Cannot happen for a four byte address.
+        throw new IllegalStateException(e);
+      }
+    }
+    return hosts;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves all running nodes of a {@link NodeMainExecutorService} to another
+ * master once the current one is lost.
+ * <p/>
+ * All candidates are probed in parallel. Depending on the configuration either
+ * the first reachable candidate in list order or the reachable candidate with
+ * the lowest round trip wins. If no candidate is reachable the attempt is
+ * repeated after {@link #RETRY_DELAY_MILLIS} for as long as the master stays
+ * lost.
+ */
+public class MasterFailover {
+
+  private static final String TAG = "MasterFailover";
+
+  static final long RETRY_DELAY_MILLIS = 2000;
+
+  private final NodeMainExecutorService nodeMainExecutorService;
+  private final ScheduledExecutorService executorService;
+  private final List<URI> candidates;
+  private final boolean rankByLatency;
+  private final MasterProber prober;
+  private final AtomicBoolean inProgress;
+
+  /**
+   * @param candidates the masters to fail over to, in order of preference
+   * @param rankByLatency if {@code true} the candidate with the lowest round
+   *        trip is chosen instead of the first reachable one
+   */
+  MasterFailover(NodeMainExecutorService nodeMainExecutorService, List<URI> candidates,
+                 boolean rankByLatency) {
+    this.nodeMainExecutorService = nodeMainExecutorService;
+    this.candidates = Collections.unmodifiableList(new ArrayList<URI>(candidates));
+    this.rankByLatency = rankByLatency;
+    executorService = nodeMainExecutorService.getScheduledExecutorService();
+    prober = new MasterProber(Math.max(1, Math.min(candidates.size(), MasterProber.DEFAULT_CONCURRENCY)),
+        MasterProber.DEFAULT_DEADLINE_MILLIS);
+    inProgress = new AtomicBoolean();
+  }
+
+  public List<URI> getCandidates() {
+    return candidates;
+  }
+
+  public boolean isRankedByLatency() {
+    return rankByLatency;
+  }
+
+  void onMasterHealthChanged(MasterHealthEvent event) {
+    if (event.getType() == MasterHealthEvent.Type.LOST) {
+      trigger(event.getMasterUri());
+    }
+  }
+
+  void shutdown() {
+    prober.shutdown();
+  }
+
+  private void trigger(final URI lostMasterUri) {
+    if (!inProgress.compareAndSet(false, true)) {
+      return;
+    }
+    executorService.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          attempt(lostMasterUri);
+        } finally {
+          inProgress.set(false);
+        }
+      }
+    });
+  }
+
+  private void attempt(final URI lostMasterUri) {
+    if (!lostMasterUri.equals(nodeMainExecutorService.getMasterUri())
+        || nodeMainExecutorService.getMasterHealth() != MasterHealthMonitor.State.LOST) {
+      // Somebody else switched the master or it came back in the meantime.
+      return;
+    }
+    ProbeResult winner = selectCandidate(lostMasterUri);
+    if (winner == null) {
+      Log.w(TAG, "No alternate master reachable, retrying in " + RETRY_DELAY_MILLIS + " ms.");
+      executorService.schedule(new Runnable() {
+        @Override
+        public void run() {
+          trigger(lostMasterUri);
+        }
+      }, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      return;
+    }
+    try {
+      URI uri = MasterProber.parseMasterUri(winner.getMasterUri());
+      Log.i(TAG, "Failing over from " + lostMasterUri + " to " + uri);
+      nodeMainExecutorService.failOver(uri, winner.getAddress());
+    } catch (URISyntaxException e) {
+      Log.e(TAG, "Invalid candidate " + winner.getMasterUri(), e);
+    }
+  }
+
+  private ProbeResult selectCandidate(URI lostMasterUri) {
+    Set<InetAddress> lostAddresses = resolve(lostMasterUri.getHost());
+    List<String> masterUris = new ArrayList<String>();
+    for (URI candidate : candidates) {
+      if (!isSameMaster(candidate, lostMasterUri, lostAddresses)) {
+        masterUris.add(candidate.toString());
+      }
+    }
+    List<Future<ProbeResult>> futures = prober.probeAll(masterUris, null);
+    ProbeResult best = null;
+    for (Future<ProbeResult> future : futures) {
+      ProbeResult result;
+      try {
+        result = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException e) {
+        continue;
+      } catch (RuntimeException e) {
+        // The probe was cancelled by its deadline.
+        continue;
+      }
+      if (!result.isReachable() || (lostMasterUri.getPort() == portOf(result)
+          && lostAddresses.contains(result.getAddress()))) {
+        continue;
+      }
+      if (!rankByLatency) {
+        best = result;
+        break;
+      }
+      if (best == null || result.getRoundTripMillis() < best.getRoundTripMillis()) {
+        best = result;
+      }
+    }
+    for (Future<ProbeResult> future : futures) {
+      future.cancel(true);
+    }
+    return best;
+  }
+
+  /**
+   * The URI of the lost master has been rewritten to the address which
+   * answered first, see {@link MasterProber#withAddress}, while the candidates
+   * are the URLs as saved, usually with host names. Compares the ports and
+   * the resolved addresses instead of the URIs.
+   */
+  private static boolean isSameMaster(URI candidate, URI lostMasterUri,
+                                      Set<InetAddress> lostAddresses) {
+    if (candidate.getPort() != lostMasterUri.getPort()) {
+      return false;
+    }
+    if (candidate.getHost().equalsIgnoreCase(lostMasterUri.getHost())) {
+      return true;
+    }
+    for (InetAddress address : resolve(candidate.getHost())) {
+      if (lostAddresses.contains(address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Set<InetAddress> resolve(String host) {
+    try {
+      return new HashSet<InetAddress>(Arrays.asList(HostResolver.getInstance().resolve(host)));
+    } catch (UnknownHostException e) {
+      return Collections.emptySet();
+    }
+  }
+
+  private static int portOf(ProbeResult result) {
+    try {
+      return MasterProber.parseMasterUri(result.getMasterUri()).getPort();
+    } catch (URISyntaxException e) {
+      return -1;
+    }
+  }
+}
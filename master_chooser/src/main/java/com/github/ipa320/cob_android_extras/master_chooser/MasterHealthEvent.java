@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.net.URI;
+
+/**
+ * Published by the {@link MasterHealthMonitor} whenever the health of the
+ * master changes.
+ */
+public final class MasterHealthEvent {
+
+  public enum Type {
+    /**
+     * The master answers slowly or missed a heartbeat.
+     */
+    DEGRADED,
+    /**
+     * The master missed several heartbeats in a row.
+     */
+    LOST,
+    /**
+     * The master answers in time again after being degraded or lost.
+     */
+    RECOVERED,
+    /**
+     * The master was lost and all nodes were moved to the alternate master
+     * given by {@link MasterHealthEvent#getMasterUri()}.
+     */
+    FAILED_OVER
+  }
+
+  private final Type type;
+  private final URI masterUri;
+  private final int consecutiveFailures;
+  private final String cause;
+  private final LatencyHistogram.Snapshot latency;
+
+  MasterHealthEvent(Type type, URI masterUri, int consecutiveFailures, String cause,
+                    LatencyHistogram.Snapshot latency) {
+    this.type = type;
+    this.masterUri = masterUri;
+    this.consecutiveFailures = consecutiveFailures;
+    this.cause = cause;
+    this.latency = latency;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public URI getMasterUri() {
+    return masterUri;
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return why the last heartbeat failed, or {@code null}
+   */
+  public String getCause() {
+    return cause;
+  }
+
+  /**
+   * @return the heartbeat round trip statistics at the time of the event
+   */
+  public LatencyHistogram.Snapshot getLatency() {
+    return latency;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + masterUri + " (" + latency + (cause != null ? ", " + cause : "") + ")";
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends a periodic heartbeat to the master and keeps track of its round trip.
+ * <p/>
+ * Heartbeats connect to the address the master was chosen by if it is known.
+ * Otherwise the host name is resolved on a separate thread and given up after
+ * {@link #RESOLVE_TIMEOUT_MILLIS}, so that a slow lookup after a network
+ * change does not delay a lost master being noticed.
+ * <p/>
+ * Every heartbeat opens a TCP connection to the master port, which detects a
+ * dead host within {@link #CONNECT_TIMEOUT_MILLIS}, and then calls
+ * {@code getUri} over that connection, see {@link MasterPing}. The call is
+ * bounded by {@link #GET_URI_TIMEOUT_MILLIS} and is all the round trip
+ * measures. Heartbeats slower than the degraded threshold or a single failed
+ * heartbeat mark the master as degraded, {@link #LOST_THRESHOLD} failed
+ * heartbeats in a row mark it as lost. Heartbeats run on a thread of their
+ * own, so a slow master never holds up the nodes' scheduler.
+ */
+public class MasterHealthMonitor {
+
+  private static final String TAG = "MasterHealthMonitor";
+
+  static final long DEFAULT_PERIOD_MILLIS = 1000;
+  static final long DEFAULT_DEGRADED_THRESHOLD_MILLIS = 250;
+  static final long RESOLVE_TIMEOUT_MILLIS = 1000;
+  static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  static final int GET_URI_TIMEOUT_MILLIS = 1000;
+  static final int LOST_THRESHOLD = 3;
+
+  private static final String CALLER_ID = "/android/master_health_monitor";
+
+  public enum State {
+    HEALTHY, DEGRADED, LOST
+  }
+
+  public interface Listener {
+    void onMasterHealthChanged(MasterHealthEvent event);
+  }
+
+  private final URI masterUri;
+  private volatile InetAddress masterAddress;
+  private final Listener listener;
+  private final long periodMillis;
+  private final long degradedThresholdMillis;
+  private final LatencyHistogram histogram;
+
+  private State state;
+  private int consecutiveFailures;
+  private ScheduledExecutorService executorService;
+  private ExecutorService resolver;
+  private ScheduledFuture<?> heartbeat;
+
+  public MasterHealthMonitor(URI masterUri, Listener listener) {
+    this(masterUri, null, listener);
+  }
+
+  /**
+   * @param masterAddress
+   *          the address to send the heartbeats to, or {@code null} to resolve
+   *          the host of the master URI
+   */
+  public MasterHealthMonitor(URI masterUri, InetAddress masterAddress, Listener listener) {
+    this(masterUri, masterAddress, listener, DEFAULT_PERIOD_MILLIS,
+        DEFAULT_DEGRADED_THRESHOLD_MILLIS);
+  }
+
+  public MasterHealthMonitor(URI masterUri, InetAddress masterAddress, Listener listener,
+                             long periodMillis, long degradedThresholdMillis) {
+    this.masterUri = masterUri;
+    this.masterAddress = masterAddress;
+    this.listener = listener;
+    this.periodMillis = periodMillis;
+    this.degradedThresholdMillis = degradedThresholdMillis;
+    histogram = new LatencyHistogram();
+    state = State.HEALTHY;
+  }
+
+  public synchronized void start() {
+    if (heartbeat == null) {
+      executorService = Executors.newSingleThreadScheduledExecutor(newThreadFactory(TAG));
+      resolver = Executors.newSingleThreadExecutor(newThreadFactory(TAG + "Resolve"));
+      heartbeat = executorService.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          beat();
+        }
+      }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+      heartbeat = null;
+      // Interrupts a heartbeat waiting for the master.
+      executorService.shutdownNow();
+      executorService = null;
+      resolver.shutdownNow();
+      resolver = null;
+    }
+  }
+
+  /**
+   * @param masterAddress
+   *          the address to send the heartbeats to from now on, or
+   *          {@code null} to resolve the host of the master URI
+   */
+  public void setMasterAddress(InetAddress masterAddress) {
+    this.masterAddress = masterAddress;
+  }
+
+  public URI getMasterUri() {
+    return masterUri;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return the round trip statistics of all successful heartbeats
+   */
+  public LatencyHistogram.Snapshot getLatency() {
+    return histogram.snapshot();
+  }
+
+  private void beat() {
+    String cause = null;
+    long elapsedMillis = -1;
+    try {
+      int port = masterUri.getPort() != -1 ? masterUri.getPort() : MasterProber.DEFAULT_MASTER_PORT;
+      Socket socket = new Socket();
+      try {
+        InetAddress address = masterAddress;
+        socket.connect(new InetSocketAddress(address != null ? address : resolve(), port),
+            CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout(GET_URI_TIMEOUT_MILLIS);
+        long start = System.nanoTime();
+        MasterPing.getUri(socket, masterUri, port, CALLER_ID);
+        long elapsed = System.nanoTime() - start;
+        if (elapsed > TimeUnit.MILLISECONDS.toNanos(GET_URI_TIMEOUT_MILLIS)) {
+          throw new SocketTimeoutException("getUri took longer than " + GET_URI_TIMEOUT_MILLIS + " ms");
+        }
+        histogram.recordNanos(elapsed);
+        elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+      } finally {
+        socket.close();
+      }
+    } catch (IOException e) {
+      cause = e.toString();
+    } catch (RuntimeException e) {
+      cause = e.toString();
+    }
+    MasterHealthEvent event = update(cause, elapsedMillis);
+    if (event != null) {
+      Log.i(TAG, event.toString());
+      listener.onMasterHealthChanged(event);
+    }
+  }
+
+  /**
+   * Resolves the host of the master URI on the resolver thread, giving up
+   * after {@link #RESOLVE_TIMEOUT_MILLIS}. A lookup which hangs keeps the
+   * resolver thread busy and the following heartbeats time out as well.
+   */
+  private InetAddress resolve() throws IOException {
+    ExecutorService currentResolver;
+    synchronized (this) {
+      currentResolver = resolver;
+    }
+    if (currentResolver == null) {
+      throw new InterruptedIOException("Stopped");
+    }
+    Future<InetAddress[]> lookup = currentResolver.submit(new Callable<InetAddress[]>() {
+      @Override
+      public InetAddress[] call() throws IOException {
+        return HostResolver.getInstance().resolve(masterUri.getHost());
+      }
+    });
+    try {
+      return lookup.get(RESOLVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)[0];
+    } catch (TimeoutException e) {
+      throw new SocketTimeoutException("Resolving " + masterUri.getHost() + " timed out");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while resolving " + masterUri.getHost());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause().toString());
+    } finally {
+      lookup.cancel(true);
+    }
+  }
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private synchronized MasterHealthEvent update(String cause, long elapsedMillis) {
+    MasterHealthEvent.Type type = null;
+    if (cause == null) {
+      consecutiveFailures = 0;
+      if (elapsedMillis <= degradedThresholdMillis) {
+        if (state != State.HEALTHY) {
+          state = State.HEALTHY;
+          type = MasterHealthEvent.Type.RECOVERED;
+        }
+      } else if (state != State.DEGRADED) {
+        state = State.DEGRADED;
+        type = MasterHealthEvent.Type.DEGRADED;
+        cause = "Heartbeat took " + elapsedMillis + " ms";
+      }
+    } else {
+      consecutiveFailures++;
+      if (consecutiveFailures >= LOST_THRESHOLD) {
+        if (state != State.LOST) {
+          state = State.LOST;
+          type = MasterHealthEvent.Type.LOST;
+        }
+      } else if (state == State.HEALTHY) {
+        state = State.DEGRADED;
+        type = MasterHealthEvent.Type.DEGRADED;
+      }
+    }
+    if (type == null) {
+      return null;
+    }
+    return new MasterHealthEvent(type, masterUri, consecutiveFailures, cause, histogram.snapshot());
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+
+/**
+ * Calls {@code getUri} on a ROS master with a hand written XML-RPC request.
+ * <p/>
+ * rosjava's XML-RPC client waits about a minute for a hung master and cannot
+ * be interrupted, which keeps the calling thread busy long after the caller
+ * gave up. Here every read is bounded by the socket timeout instead.
+ */
+final class MasterPing {
+
+  private MasterPing() {
+  }
+
+  /**
+   * Calls {@code getUri} on the master over the given connection.
+   *
+   * @param port the port the socket is connected to, sent in the Host header
+   * @throws IOException if the master does not answer with a successful
+   *         XML-RPC response
+   */
+  static void getUri(Socket socket, URI masterUri, int port, String callerId) throws IOException {
+    byte[] body = ("<?xml version=\"1.0\"?><methodCall>"
+        + "<methodName>getUri</methodName><params><param><value><string>"
+        + callerId + "</string></value></param></params></methodCall>").getBytes("UTF-8");
+    String path = masterUri.getRawPath() == null || masterUri.getRawPath().length() == 0
+        ? "/" : masterUri.getRawPath();
+    OutputStream out = socket.getOutputStream();
+    out.write(("POST " + path + " HTTP/1.0\r\nHost: " + masterUri.getHost() + ":" + port
+        + "\r\nContent-Type: text/xml\r\nContent-Length: " + body.length + "\r\n\r\n")
+        .getBytes("US-ASCII"));
+    out.write(body);
+    out.flush();
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+    String status = in.readLine();
+    if (status == null || !status.matches("HTTP/1\\.[01] 200.*")) {
+      throw new IOException("Unexpected response " + status);
+    }
+    StringBuilder response = new StringBuilder();
+    String line;
+    while ((line = in.readLine()) != null) {
+      response.append(line);
+      if (line.contains("</methodResponse>")) {
+        break;
+      }
+    }
+    if (response.indexOf("</methodResponse>") < 0 || response.indexOf("<fault>") >= 0) {
+      throw new IOException("getUri failed");
+    }
+  }
+}
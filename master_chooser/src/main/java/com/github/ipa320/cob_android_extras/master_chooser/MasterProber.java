@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Probes ROS masters for reachability in parallel.
+ * <p/>
+ * Every probe runs through three stages, each with its own timeout: resolving
+ * the host name, racing TCP connections to all of its addresses (see
+ * {@link AddressRacer}) and finally an XML-RPC {@code getUri} call over the
+ * connection which answered first, see {@link MasterPing}. At most
+ * {@code concurrency} probes run at the same time, every probe is additionally
+ * bounded by an overall deadline which starts when the probe is actually
+ * scheduled, not when it was queued. Cancelling the returned {@link Future}
+ * aborts the probe at the current stage.
+ * <p/>
+ * A stage which times out keeps its thread until the blocking call returns, a
+ * hung name lookup cannot be interrupted. The stages therefore share a pool of
+ * {@link #STAGE_THREADS_PER_PROBE} threads per probe; stages queued behind
+ * hung ones time out like the hung ones themselves.
+ */
+public class MasterProber {
+
+  private static final String TAG = "MasterProber";
+
+  static final int DEFAULT_CONCURRENCY = 8;
+  static final long DEFAULT_DEADLINE_MILLIS = 3000;
+  static final int DEFAULT_MASTER_PORT = 11311;
+
+  static final long RESOLVE_TIMEOUT_MILLIS = 1000;
+  static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  static final int GET_URI_TIMEOUT_MILLIS = 1000;
+  static final int STAGE_THREADS_PER_PROBE = 3;
+
+  private static final long STAGE_KEEP_ALIVE_SECONDS = 30;
+  private static final String CALLER_ID = "/android/master_chooser_probe";
+
+  /**
+   * Receives probe results. Called on one of the prober's worker threads.
+   */
+  public interface Callback {
+    void onProbeResult(ProbeResult result);
+  }
+
+  private final ExecutorService probeExecutor;
+  private final ExecutorService stageExecutor;
+  private final ScheduledExecutorService deadlineExecutor;
+  private final long deadlineMillis;
+
+  public MasterProber() {
+    this(DEFAULT_CONCURRENCY, DEFAULT_DEADLINE_MILLIS);
+  }
+
+  public MasterProber(int concurrency, long deadlineMillis) {
+    this.deadlineMillis = deadlineMillis;
+    probeExecutor = Executors.newFixedThreadPool(concurrency, newThreadFactory(TAG));
+    ThreadPoolExecutor stages = new ThreadPoolExecutor(concurrency * STAGE_THREADS_PER_PROBE,
+        concurrency * STAGE_THREADS_PER_PROBE, STAGE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), newThreadFactory(TAG + "Stage"));
+    stages.allowCoreThreadTimeOut(true);
+    stageExecutor = stages;
+    deadlineExecutor = Executors.newSingleThreadScheduledExecutor(newThreadFactory(TAG + "Deadline"));
+  }
+
+  /**
+   * Probes all given masters. Results are delivered to the callback in the
+   * order in which they become available.
+   */
+  public List<Future<ProbeResult>> probeAll(Collection<String> masterUris, Callback callback) {
+    List<Future<ProbeResult>> futures = new ArrayList<Future<ProbeResult>>(masterUris.size());
+    for (String masterUri : masterUris) {
+      futures.add(probe(masterUri, callback));
+    }
+    return futures;
+  }
+
+  public Future<ProbeResult> probe(final String masterUri, Callback callback) {
+    ProbeTask task = new ProbeTask(new Callable<ProbeResult>() {
+      @Override
+      public ProbeResult call() {
+        return probeBlocking(masterUri);
+      }
+    }, masterUri, callback);
+    probeExecutor.execute(task);
+    return task;
+  }
+
+  /**
+   * Cancels all pending probes. Results which have not been delivered yet are
+   * dropped.
+   */
+  public void shutdown() {
+    probeExecutor.shutdownNow();
+    stageExecutor.shutdownNow();
+    deadlineExecutor.shutdownNow();
+  }
+
+  /**
+   * Parses a master URI the way it is typed in by users, i.e. with or without
+   * scheme and port.
+   */
+  static URI parseMasterUri(String masterUri) throws URISyntaxException {
+    String trimmed = masterUri.trim();
+    if (!trimmed.contains("://")) {
+      trimmed = "http://" + trimmed;
+    }
+    URI uri = new URI(trimmed);
+    if (uri.getHost() == null) {
+      throw new URISyntaxException(masterUri, "Missing host");
+    }
+    if (uri.getPort() == -1) {
+      uri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), DEFAULT_MASTER_PORT,
+          uri.getPath(), uri.getQuery(), uri.getFragment());
+    }
+    return uri;
+  }
+
+  /**
+   * Replaces the host of a master URI with the given address so that clients
+   * connect to exactly that address instead of resolving the host name again.
+   * Scoped IPv6 addresses cannot be written portably into a URI, in that case
+   * the URI is returned unchanged.
+   */
+  static URI withAddress(URI uri, InetAddress address) {
+    if (address instanceof Inet6Address && ((Inet6Address) address).getScopeId() != 0) {
+      return uri;
+    }
+    try {
+      return new URI(uri.getScheme(), uri.getUserInfo(), address.getHostAddress(), uri.getPort(),
+          uri.getPath(), uri.getQuery(), uri.getFragment());
+    } catch (URISyntaxException e) {
+      return uri;
+    }
+  }
+
+  ProbeResult probeBlocking(String masterUri) {
+    final URI uri;
+    try {
+      uri = parseMasterUri(masterUri);
+    } catch (URISyntaxException e) {
+      return ProbeResult.unreachable(masterUri, "Invalid URI");
+    }
+    String stage = "Resolve";
+    try {
+      InetAddress[] addresses = runStage(new Callable<InetAddress[]>() {
+        @Override
+        public InetAddress[] call() throws UnknownHostException {
+          return HostResolver.getInstance().resolve(uri.getHost());
+        }
+      }, RESOLVE_TIMEOUT_MILLIS);
+
+      stage = "Connect";
+      final Socket socket =
+          AddressRacer.race(addresses, uri.getPort(), CONNECT_TIMEOUT_MILLIS, stageExecutor);
+      try {
+        // getUri runs over the connection which won the race, so the round
+        // trip does not include another handshake.
+        stage = "getUri";
+        socket.setSoTimeout(GET_URI_TIMEOUT_MILLIS);
+        long start = System.nanoTime();
+        runStage(new Callable<Object>() {
+          @Override
+          public Object call() throws IOException {
+            MasterPing.getUri(socket, uri, uri.getPort(), CALLER_ID);
+            return null;
+          }
+        }, GET_URI_TIMEOUT_MILLIS);
+        return ProbeResult.reachable(masterUri,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), socket.getInetAddress());
+      } finally {
+        // Also ends a getUri which is still blocked after its stage timed out.
+        socket.close();
+      }
+    } catch (UnknownHostException e) {
+      return ProbeResult.unreachable(masterUri, "Unknown host");
+    } catch (TimeoutException e) {
+      return ProbeResult.unreachable(masterUri, stage + " timed out");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return ProbeResult.unreachable(masterUri, "Cancelled");
+    } catch (IOException e) {
+      return ProbeResult.unreachable(masterUri, stage + " failed: " + e.getMessage());
+    } catch (Exception e) {
+      return ProbeResult.unreachable(masterUri, e.getMessage());
+    }
+  }
+
+  /**
+   * Runs a single blocking stage of a probe and gives up after the given
+   * timeout. The stage is interrupted if it times out or if the calling probe
+   * gets cancelled.
+   */
+  private <T> T runStage(Callable<T> stage, long timeoutMillis) throws Exception {
+    Future<T> future = stageExecutor.submit(stage);
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    } finally {
+      future.cancel(true);
+    }
+  }
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private final class ProbeTask extends FutureTask<ProbeResult> {
+
+    private final String masterUri;
+    private final Callback callback;
+    private final AtomicBoolean delivered;
+
+    ProbeTask(Callable<ProbeResult> probe, String masterUri, Callback callback) {
+      super(probe);
+      this.masterUri = masterUri;
+      this.callback = callback;
+      delivered = new AtomicBoolean();
+    }
+
+    @Override
+    public void run() {
+      ScheduledFuture<?> deadline = deadlineExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          deliver(ProbeResult.unreachable(masterUri, "Timed out"));
+          cancel(true);
+        }
+      }, deadlineMillis, TimeUnit.MILLISECONDS);
+      try {
+        super.run();
+      } finally {
+        deadline.cancel(false);
+      }
+    }
+
+    @Override
+    protected void done() {
+      if (isCancelled()) {
+        return;
+      }
+      try {
+        deliver(get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        deliver(ProbeResult.unreachable(masterUri, e.getCause().toString()));
+      }
+    }
+
+    private void deliver(ProbeResult result) {
+      if (delivered.compareAndSet(false, true) && callback != null) {
+        Log.d(TAG, result.toString());
+        callback.onProbeResult(result);
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.net.URI;
+
+/**
+ * A {@link NodeMainExecutorServiceListener} which is also told when a master
+ * {@link URI} becomes available, either because a master was chosen or because
+ * a local master finished starting. Register it with
+ * {@link NodeMainExecutorService#addListener(NodeMainExecutorServiceListener)}.
+ */
+public interface MasterUriListener extends NodeMainExecutorServiceListener {
+
+  /**
+   * @param nodeMainExecutorService the {@link NodeMainExecutorService} the master belongs to
+   * @param masterUri the {@link URI} nodes should connect to
+   */
+  void onMasterUriAvailable(NodeMainExecutorService nodeMainExecutorService, URI masterUri);
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import com.google.common.base.Preconditions;
+
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeListener;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Combined result of {@link NodeMainExecutorService#execute(java.util.Map)}.
+ * <p/>
+ * The nodes of the batch are admitted by the service's
+ * {@link RegistrationScheduler} like any other node. The future completes once
+ * every node has started and fails with the first error of any node.
+ * Cancelling it, or the first failure, stops launching the nodes which are
+ * still queued; nodes which are already running are not affected.
+ */
+public final class NodeBatchLaunch implements Future<Void> {
+
+  private final int size;
+  private final CountDownLatch pending;
+  private final AtomicInteger started;
+  private volatile Throwable failure;
+  private volatile boolean cancelled;
+
+  NodeBatchLaunch(int size) {
+    Preconditions.checkArgument(size >= 0);
+    this.size = size;
+    pending = new CountDownLatch(size);
+    started = new AtomicInteger();
+  }
+
+  /**
+   * @return whether the nodes which are still queued must not be launched
+   *         anymore
+   */
+  boolean isStopped() {
+    return cancelled || failure != null;
+  }
+
+  /**
+   * Fails the batch because one of its nodes could not be launched.
+   */
+  void fail(Throwable throwable) {
+    if (isDone()) {
+      return;
+    }
+    if (failure == null) {
+      failure = throwable;
+    }
+    drain();
+  }
+
+  /**
+   * @return a listener which reports the registration of a single node of the
+   *         batch
+   */
+  Member newMember() {
+    return new Member();
+  }
+
+  /**
+   * Reports the registration of a single node of the batch.
+   */
+  final class Member implements NodeListener {
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private Member() {
+    }
+
+    /**
+     * Called once the node is shut down for good, or dropped before it was
+     * launched. Fails the batch unless the node has started.
+     */
+    void stopped(Throwable cause) {
+      if (finished.compareAndSet(false, true)) {
+        fail(cause);
+      }
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+      if (finished.compareAndSet(false, true)) {
+        started.incrementAndGet();
+        pending.countDown();
+      }
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+    }
+
+    @Override
+    public void onShutdownComplete(Node node) {
+      // Nodes which timed out are shut down and launched again by the
+      // RegistrationScheduler, the service calls stopped() once a node is
+      // really gone.
+    }
+
+    @Override
+    public void onError(Node node, Throwable throwable) {
+      // Timeouts are retried, the scheduler fails the batch if it gives up.
+      if (!RegistrationScheduler.isTimeout(throwable) && finished.compareAndSet(false, true)) {
+        fail(throwable);
+      }
+    }
+  }
+
+  private void drain() {
+    // Nothing waits for the remaining nodes once the batch failed.
+    while (pending.getCount() > 0) {
+      pending.countDown();
+    }
+  }
+
+  /**
+   * @return the number of nodes in this batch
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of nodes which have started so far
+   */
+  public int getStartedCount() {
+    return started.get();
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (isDone()) {
+      return false;
+    }
+    cancelled = true;
+    drain();
+    return true;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return cancelled || pending.getCount() == 0;
+  }
+
+  @Override
+  public Void get() throws InterruptedException, ExecutionException {
+    pending.await();
+    return result();
+  }
+
+  @Override
+  public Void get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (!pending.await(timeout, unit)) {
+      throw new TimeoutException(started.get() + " of " + size + " nodes started");
+    }
+    return result();
+  }
+
+  private Void result() throws ExecutionException {
+    if (cancelled) {
+      throw new CancellationException();
+    }
+    if (failure != null) {
+      throw new ExecutionException(failure);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeListener;
+import org.ros.node.NodeMain;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and gauges describing what a {@link NodeMainExecutorService} runs.
+ * <p/>
+ * Updating a counter is a single atomic operation, latencies go into
+ * {@link LatencyHistogram}s. Executor gauges are read from the thread pools
+ * backing the service when a {@link Snapshot} is taken.
+ */
+public class NodeMainExecutorMetrics {
+
+  private final List<ThreadPoolExecutor> pools;
+  private final AtomicInteger runningNodes;
+  private final AtomicLong nodesStarted;
+  private final AtomicLong nodesShutdown;
+  private final AtomicLong nodeErrors;
+  private final LatencyHistogram startLatency;
+  private final LatencyHistogram shutdownLatency;
+  private final LatencyHistogram listenerDispatchLatency;
+  private final Map<String, Long> nodeStartMillis;
+  private final Map<String, Long> nodeShutdownMillis;
+  private final Map<NodeMain, Long> shutdownRequests;
+  private volatile RegistrationScheduler registrationScheduler;
+
+  /**
+   * Receives periodic {@link Snapshot}s, see
+   * {@link NodeMainExecutorService#startMetricsExport(long, Listener)}.
+   */
+  public interface Listener {
+    void onMetricsSnapshot(Snapshot snapshot);
+  }
+
+  /**
+   * Immutable view of the metrics at one point in time. Latencies are in
+   * milliseconds.
+   */
+  public static final class Snapshot {
+
+    private final long timestampMillis;
+    private final int runningNodes;
+    private final long nodesStarted;
+    private final long nodesShutdown;
+    private final long nodeErrors;
+    private final LatencyHistogram.Snapshot startLatency;
+    private final LatencyHistogram.Snapshot shutdownLatency;
+    private final LatencyHistogram.Snapshot listenerDispatchLatency;
+    private final Map<String, Long> nodeStartMillis;
+    private final Map<String, Long> nodeShutdownMillis;
+    private final int queueDepth;
+    private final int activeTasks;
+    private final long completedTasks;
+    private final int poolSize;
+    private final long rejectedTasks;
+    private final int queuedRegistrations;
+    private final int inFlightRegistrations;
+    private final long registrationTimeouts;
+    private final long registrationRetries;
+
+    private Snapshot(NodeMainExecutorMetrics metrics) {
+      timestampMillis = System.currentTimeMillis();
+      runningNodes = metrics.runningNodes.get();
+      nodesStarted = metrics.nodesStarted.get();
+      nodesShutdown = metrics.nodesShutdown.get();
+      nodeErrors = metrics.nodeErrors.get();
+      startLatency = metrics.startLatency.snapshot();
+      shutdownLatency = metrics.shutdownLatency.snapshot();
+      listenerDispatchLatency = metrics.listenerDispatchLatency.snapshot();
+      nodeStartMillis = Collections.unmodifiableMap(new HashMap<String, Long>(metrics.nodeStartMillis));
+      nodeShutdownMillis =
+          Collections.unmodifiableMap(new HashMap<String, Long>(metrics.nodeShutdownMillis));
+      int queued = 0;
+      int active = 0;
+      long completed = 0;
+      int size = 0;
+      long rejected = 0;
+      for (ThreadPoolExecutor pool : metrics.pools) {
+        queued += pool.getQueue().size();
+        active += pool.getActiveCount();
+        completed += pool.getCompletedTaskCount();
+        size += pool.getPoolSize();
+        if (pool.getRejectedExecutionHandler() instanceof ExecutorPolicy.RejectingPolicy) {
+          rejected += ((ExecutorPolicy.RejectingPolicy) pool.getRejectedExecutionHandler())
+              .getRejectedCount();
+        }
+      }
+      rejectedTasks = rejected;
+      queueDepth = queued;
+      activeTasks = active;
+      completedTasks = completed;
+      poolSize = size;
+      RegistrationScheduler registrations = metrics.registrationScheduler;
+      if (registrations != null) {
+        queuedRegistrations = registrations.getQueueLength();
+        inFlightRegistrations = registrations.getInFlight();
+        registrationTimeouts = registrations.getTimeouts();
+        registrationRetries = registrations.getRetries();
+      } else {
+        queuedRegistrations = 0;
+        inFlightRegistrations = 0;
+        registrationTimeouts = 0;
+        registrationRetries = 0;
+      }
+    }
+
+    public long getTimestampMillis() {
+      return timestampMillis;
+    }
+
+    public int getRunningNodes() {
+      return runningNodes;
+    }
+
+    public long getNodesStarted() {
+      return nodesStarted;
+    }
+
+    public long getNodesShutdown() {
+      return nodesShutdown;
+    }
+
+    public long getNodeErrors() {
+      return nodeErrors;
+    }
+
+    /**
+     * @return time from {@code execute()} until the node has started
+     */
+    public LatencyHistogram.Snapshot getStartLatency() {
+      return startLatency;
+    }
+
+    /**
+     * @return time from {@code shutdownNodeMain()} until the node has shut down
+     */
+    public LatencyHistogram.Snapshot getShutdownLatency() {
+      return shutdownLatency;
+    }
+
+    /**
+     * @return time spent in {@link NodeMainExecutorServiceListener} callbacks
+     */
+    public LatencyHistogram.Snapshot getListenerDispatchLatency() {
+      return listenerDispatchLatency;
+    }
+
+    /**
+     * @return the last start latency per node name
+     */
+    public Map<String, Long> getNodeStartMillis() {
+      return nodeStartMillis;
+    }
+
+    /**
+     * @return the last shutdown latency per node name
+     */
+    public Map<String, Long> getNodeShutdownMillis() {
+      return nodeShutdownMillis;
+    }
+
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    public int getActiveTasks() {
+      return activeTasks;
+    }
+
+    public long getCompletedTasks() {
+      return completedTasks;
+    }
+
+    public int getPoolSize() {
+      return poolSize;
+    }
+
+    /**
+     * @return the number of tasks rejected because a pool was saturated
+     */
+    public long getRejectedTasks() {
+      return rejectedTasks;
+    }
+
+    /**
+     * @return the number of nodes waiting to be admitted to the master
+     */
+    public int getQueuedRegistrations() {
+      return queuedRegistrations;
+    }
+
+    /**
+     * @return the number of nodes launched but not started yet
+     */
+    public int getInFlightRegistrations() {
+      return inFlightRegistrations;
+    }
+
+    public long getRegistrationTimeouts() {
+      return registrationTimeouts;
+    }
+
+    public long getRegistrationRetries() {
+      return registrationRetries;
+    }
+
+    @Override
+    public String toString() {
+      return "nodes=" + runningNodes + " started=" + nodesStarted + " shutdown=" + nodesShutdown
+          + " errors=" + nodeErrors + " start[" + startLatency + "] shutdown[" + shutdownLatency
+          + "] dispatch[" + listenerDispatchLatency + "] threads=" + poolSize + " active="
+          + activeTasks + " queued=" + queueDepth + " completed=" + completedTasks
+          + " rejected=" + rejectedTasks
+          + " registrations=" + inFlightRegistrations + "/" + queuedRegistrations + " timeouts="
+          + registrationTimeouts;
+    }
+  }
+
+  /**
+   * @param pools the thread pools whose queue depth and task counts are
+   *        reported
+   */
+  NodeMainExecutorMetrics(List<ThreadPoolExecutor> pools) {
+    this.pools = pools;
+    runningNodes = new AtomicInteger();
+    nodesStarted = new AtomicLong();
+    nodesShutdown = new AtomicLong();
+    nodeErrors = new AtomicLong();
+    startLatency = new LatencyHistogram();
+    shutdownLatency = new LatencyHistogram();
+    listenerDispatchLatency = new LatencyHistogram();
+    nodeStartMillis = new ConcurrentHashMap<String, Long>();
+    nodeShutdownMillis = new ConcurrentHashMap<String, Long>();
+    shutdownRequests = new ConcurrentHashMap<NodeMain, Long>();
+  }
+
+  void setRegistrationScheduler(RegistrationScheduler registrationScheduler) {
+    this.registrationScheduler = registrationScheduler;
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * @return a {@link NodeListener} which records the lifecycle of a node that
+   *         is being executed right now
+   */
+  NodeListener newNodeListener(final NodeMain nodeMain) {
+    final long executeNanos = System.nanoTime();
+    final AtomicBoolean started = new AtomicBoolean();
+    return new NodeListener() {
+      @Override
+      public void onStart(ConnectedNode connectedNode) {
+        long elapsed = System.nanoTime() - executeNanos;
+        started.set(true);
+        runningNodes.incrementAndGet();
+        nodesStarted.incrementAndGet();
+        startLatency.recordNanos(elapsed);
+        nodeStartMillis.put(connectedNode.getName().toString(),
+            TimeUnit.NANOSECONDS.toMillis(elapsed));
+      }
+
+      @Override
+      public void onShutdown(Node node) {
+      }
+
+      @Override
+      public void onShutdownComplete(Node node) {
+        if (started.compareAndSet(true, false)) {
+          runningNodes.decrementAndGet();
+        }
+        nodesShutdown.incrementAndGet();
+        Long requested = shutdownRequests.remove(nodeMain);
+        if (requested != null) {
+          long elapsed = System.nanoTime() - requested;
+          shutdownLatency.recordNanos(elapsed);
+          nodeShutdownMillis.put(node.getName().toString(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+      }
+
+      @Override
+      public void onError(Node node, Throwable throwable) {
+        nodeErrors.incrementAndGet();
+      }
+    };
+  }
+
+  void onShutdownRequested(NodeMain nodeMain) {
+    shutdownRequests.put(nodeMain, System.nanoTime());
+  }
+
+  void recordListenerDispatch(long nanos) {
+    listenerDispatchLatency.recordNanos(nanos);
+  }
+}
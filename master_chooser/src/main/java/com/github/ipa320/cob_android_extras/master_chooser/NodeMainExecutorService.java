@@ -22,14 +22,19 @@ import android.app.AlertDialog;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
@@ -41,20 +46,44 @@ import android.widget.Toast;
 import org.ros.RosCore;
 import com.github.ipa320.cob_android_extras.master_chooser.R;
 import org.ros.address.InetAddressFactory;
+import org.ros.address.PrivateAdvertiseAddressFactory;
 import org.ros.concurrent.ListenerGroup;
 import org.ros.concurrent.SignalRunnable;
 import org.ros.exception.RosRuntimeException;
+import org.ros.namespace.GraphName;
+import org.ros.namespace.NameResolver;
+import org.ros.node.ConnectedNode;
 import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.Node;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeListener;
 import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
 import org.ros.android.NodeMainExecutorListener;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author damonkohler@google.com (Damon Kohler)
@@ -70,19 +99,61 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
   static public final String ACTION_SHUTDOWN = "org.ros.android.ACTION_SHUTDOWN_NODE_RUNNER_SERVICE";
   static public final String EXTRA_NOTIFICATION_TITLE = "org.ros.android.EXTRA_NOTIFICATION_TITLE";
   static public final String EXTRA_NOTIFICATION_TICKER = "org.ros.android.EXTRA_NOTIFICATION_TICKER";
+  /**
+   * Serializable {@link ExecutorPolicy} extra of {@link #ACTION_START}. Only
+   * honored if no node has been executed yet.
+   */
+  static public final String EXTRA_EXECUTOR_POLICY =
+      "com.github.ipa320.cob_android_extras.master_chooser.EXTRA_EXECUTOR_POLICY";
+  /**
+   * Boolean extra of {@link #ACTION_START}, see {@link #setSticky(boolean)}.
+   */
+  static public final String EXTRA_STICKY =
+      "com.github.ipa320.cob_android_extras.master_chooser.EXTRA_STICKY";
+
+  /**
+   * Boolean meta-data of the service declaration. If {@code true} a private
+   * {@link RosCore} is started as soon as the service is created, so that
+   * choosing a new private master does not have to wait for it.
+   */
+  static public final String META_DATA_WARM_START_MASTER =
+      "com.github.ipa320.cob_android_extras.master_chooser.WARM_START_MASTER";
 
-  private final NodeMainExecutor nodeMainExecutor;
   private final IBinder binder;
-  private final ListenerGroup<NodeMainExecutorServiceListener> listeners;
+  private final Map<NodeMain, NodeLaunch> nodeLaunches;
+  private final List<ThreadPoolExecutor> pools;
+  private final NodeMainExecutorMetrics metrics;
+
+  // Created on first use so that an ExecutorPolicy passed with the start
+  // intent can still be applied.
+  private ExecutorPolicy executorPolicy;
+  private Map<ExecutorPolicy.Lane, NodeMainExecutor> nodeMainExecutors;
+  private ListenerGroup<NodeMainExecutorServiceListener> listeners;
+  private RegistrationScheduler registrationScheduler;
+  private int maxConcurrentRegistrations;
+  private long shutdownDeadlineMillis;
+  private volatile ShutdownCoordinator.Report shutdownReport;
 
   private boolean isShuttingDown;
   private Handler handler;
   private WakeLock wakeLock;
   private WifiLock wifiLock;
+  private BroadcastReceiver networkChangeReceiver;
+  private MasterHealthMonitor healthMonitor;
+  private MasterFailover failover;
+  private ScheduledFuture<?> metricsExport;
   private RosCore rosCore;
+  private Future<RosCore> warmRosCore;
+  private WarmMaster warmMaster;
   private URI masterUri;
+  private InetAddress masterAddress;
   private String masterTitle;
   private String rosHostname;
+  private String networkInterface;
+  private boolean masterCreated;
+  private boolean masterPrivate;
+  private boolean sticky;
+  private SessionStore sessionStore;
 
   /**
    * Class for clients to access. Because we know this service always runs in
@@ -92,21 +163,128 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
     public NodeMainExecutorService getService() {
       return NodeMainExecutorService.this;
     }
+
+    public NodeMainExecutorMetrics.Snapshot getMetrics() {
+      return metrics.snapshot();
+    }
+  }
+
+  /**
+   * Remembers how a {@link NodeMain} was launched so that it can be launched
+   * again against another master.
+   */
+  private static final class NodeLaunch {
+    final NodeMain nodeMain;
+    final Collection<NodeListener> nodeListeners;
+    final ExecutorPolicy.Lane lane;
+    volatile NodeConfiguration nodeConfiguration;
+    // The batch this node was launched with, if any.
+    NodeBatchLaunch batch;
+    NodeBatchLaunch.Member batchMember;
+    // Relaunched from the persisted session, replaced as soon as a client
+    // executes the same node again.
+    boolean restored;
+    // Guarded by this, see relaunchAfterShutdown().
+    State state;
+    Runnable relaunch;
+
+    enum State {
+      // Waiting for the RegistrationScheduler.
+      QUEUED,
+      RUNNING,
+      // Shutting down to be launched again.
+      RELAUNCHING,
+      STOPPED
+    }
+
+    NodeLaunch(NodeMain nodeMain, NodeConfiguration nodeConfiguration,
+               Collection<NodeListener> nodeListeners, ExecutorPolicy.Lane lane) {
+      this.nodeMain = nodeMain;
+      this.nodeConfiguration = nodeConfiguration;
+      this.nodeListeners = nodeListeners;
+      this.lane = lane;
+    }
   }
 
   public NodeMainExecutorService() {
     super();
     rosHostname = null;
-    nodeMainExecutor = DefaultNodeMainExecutor.newDefault();
+    // Filled in once the executors are created, read by the metrics.
+    pools = new CopyOnWriteArrayList<ThreadPoolExecutor>();
+    metrics = new NodeMainExecutorMetrics(pools);
     binder = new LocalBinder();
-    listeners =
-        new ListenerGroup<NodeMainExecutorServiceListener>(
-            nodeMainExecutor.getScheduledExecutorService());
+    nodeLaunches = new LinkedHashMap<NodeMain, NodeLaunch>();
+    maxConcurrentRegistrations = RegistrationScheduler.DEFAULT_MAX_IN_FLIGHT;
+    shutdownDeadlineMillis = ShutdownCoordinator.DEFAULT_DEADLINE_MILLIS;
+  }
+
+  /**
+   * Sets the thread pools nodes are executed on. Must be called before the
+   * first node is executed, i.e. before anything uses the executors.
+   *
+   * @throws IllegalStateException if the executors already exist
+   */
+  public synchronized void setExecutorPolicy(ExecutorPolicy policy) {
+    Preconditions.checkState(nodeMainExecutors == null,
+        "Executors already created with " + executorPolicy);
+    executorPolicy = Preconditions.checkNotNull(policy);
+  }
+
+  public synchronized ExecutorPolicy getExecutorPolicy() {
+    return executorPolicy;
+  }
+
+  private synchronized void ensureExecutors() {
+    if (nodeMainExecutors != null) {
+      return;
+    }
+    if (executorPolicy == null) {
+      executorPolicy = ExecutorPolicy.newDefault();
+    }
+    Log.i(TAG, "Creating executors: " + executorPolicy);
+    nodeMainExecutors = new EnumMap<ExecutorPolicy.Lane, NodeMainExecutor>(ExecutorPolicy.Lane.class);
+    for (ExecutorPolicy.Lane lane : ExecutorPolicy.Lane.values()) {
+      if (executorPolicy.resolve(lane) == lane) {
+        nodeMainExecutors.put(lane, DefaultNodeMainExecutor.newDefault(
+            executorPolicy.newScheduledExecutorService(lane, pools)));
+      }
+    }
+    if (sessionStore != null) {
+      // Restored with the session, see restoreSession().
+      sessionStore.saveExecutorPolicy(executorPolicy);
+    }
+    listeners = new ListenerGroup<NodeMainExecutorServiceListener>(getScheduledExecutorService());
+    registrationScheduler =
+        new RegistrationScheduler(getScheduledExecutorService(), maxConcurrentRegistrations);
+    metrics.setRegistrationScheduler(registrationScheduler);
+  }
+
+  /**
+   * Limits how many nodes may be registering with the master at the same
+   * time, across all launches of this service. Further nodes are queued.
+   */
+  public void setMaxConcurrentRegistrations(int maxConcurrentRegistrations) {
+    Preconditions.checkArgument(maxConcurrentRegistrations > 0);
+    synchronized (this) {
+      this.maxConcurrentRegistrations = maxConcurrentRegistrations;
+      if (registrationScheduler == null) {
+        return;
+      }
+    }
+    registrationScheduler.setMaxInFlight(maxConcurrentRegistrations);
+  }
+
+  private NodeMainExecutor getNodeMainExecutor(ExecutorPolicy.Lane lane) {
+    ensureExecutors();
+    synchronized (this) {
+      return nodeMainExecutors.get(executorPolicy.resolve(lane));
+    }
   }
 
   @Override
   public void onCreate() {
     handler = new Handler();
+    sessionStore = new SessionStore(this);
     PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
     wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
     wakeLock.acquire();
@@ -120,12 +298,326 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
     WifiManager wifiManager = (WifiManager) getSystemService(WIFI_SERVICE);
     wifiLock = wifiManager.createWifiLock(wifiLockType, TAG);
     wifiLock.acquire();
+    // Cached host addresses become stale as soon as the network changes.
+    networkChangeReceiver = new HostResolver.NetworkChangeReceiver();
+    registerReceiver(networkChangeReceiver,
+        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    if (isWarmStartEnabled()) {
+      warmUpMaster();
+    }
+  }
+
+  private boolean isWarmStartEnabled() {
+    try {
+      Bundle metaData = getPackageManager().getServiceInfo(
+          new ComponentName(this, getClass()), PackageManager.GET_META_DATA).metaData;
+      return metaData != null && metaData.getBoolean(META_DATA_WARM_START_MASTER, false);
+    } catch (PackageManager.NameNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Speculatively starts a private {@link RosCore} in the background. It is
+   * handed out by the next {@link #startMasterAsync(boolean)} for a private
+   * master and torn down if a different master is chosen.
+   */
+  private synchronized void warmUpMaster() {
+    // Runs on its own thread, the executors are not created before the
+    // ExecutorPolicy is known.
+    warmMaster = new WarmMaster();
+    FutureTask<RosCore> task = new FutureTask<RosCore>(warmMaster);
+    warmRosCore = task;
+    new Thread(task, "WarmMaster").start();
+  }
+
+  /**
+   * Starts the pre-warmed {@link RosCore} and keeps hold of it until it is
+   * either handed out or discarded, so that discarding shuts it down no matter
+   * how far the start got.
+   */
+  private static final class WarmMaster implements Callable<RosCore> {
+
+    private RosCore core;
+    private boolean discarded;
+
+    @Override
+    public RosCore call() throws Exception {
+      RosCore created = RosCore.newPrivate();
+      synchronized (this) {
+        if (discarded) {
+          return null;
+        }
+        core = created;
+        created.start();
+      }
+      created.awaitStart();
+      Log.i(TAG, "Warm master running at " + created.getUri());
+      return created;
+    }
+
+    /**
+     * Shuts the core down if it has been started, and keeps it from being
+     * started otherwise.
+     */
+    void discard() {
+      RosCore started;
+      synchronized (this) {
+        discarded = true;
+        started = core;
+        core = null;
+      }
+      if (started != null) {
+        try {
+          started.shutdown();
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Unable to shut down warm master.", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the pre-warmed {@link RosCore} once it is running, or {@code null}
+   *         if there is none
+   */
+  private RosCore takeWarmMaster() {
+    Future<RosCore> pending;
+    WarmMaster warm;
+    synchronized (this) {
+      pending = warmRosCore;
+      warm = warmMaster;
+      warmRosCore = null;
+      warmMaster = null;
+    }
+    if (pending == null) {
+      return null;
+    }
+    try {
+      return pending.get();
+    } catch (InterruptedException e) {
+      warm.discard();
+      throw new RosRuntimeException(e);
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Warm master failed to start.", e.getCause());
+      warm.discard();
+      return null;
+    }
+  }
+
+  /**
+   * Tears down the pre-warmed {@link RosCore}, if any.
+   */
+  public void discardWarmMaster() {
+    Future<RosCore> pending;
+    WarmMaster warm;
+    synchronized (this) {
+      pending = warmRosCore;
+      warm = warmMaster;
+      warmRosCore = null;
+      warmMaster = null;
+    }
+    if (pending == null) {
+      return;
+    }
+    // Interrupts a start which is still waiting for the core.
+    pending.cancel(true);
+    warm.discard();
   }
 
   @Override
   public void execute(NodeMain nodeMain, NodeConfiguration nodeConfiguration,
       Collection<NodeListener> nodeListeneners) {
-    nodeMainExecutor.execute(nodeMain, nodeConfiguration, nodeListeneners);
+    execute(nodeMain, nodeConfiguration, nodeListeneners, ExecutorPolicy.Lane.DEFAULT);
+  }
+
+  /**
+   * Executes the node in the given lane of the {@link ExecutorPolicy}. Without
+   * priority lanes this is the same as
+   * {@link #execute(NodeMain, NodeConfiguration, Collection)}.
+   */
+  public void execute(NodeMain nodeMain, NodeConfiguration nodeConfiguration,
+      Collection<NodeListener> nodeListeneners, ExecutorPolicy.Lane lane) {
+    execute(new NodeLaunch(nodeMain, nodeConfiguration, nodeListeneners, lane));
+  }
+
+  private void execute(NodeLaunch launch) {
+    StartupTrace.getInstance().mark(StartupTrace.Phase.NODE_EXECUTE);
+    NodeLaunch replaced = null;
+    synchronized (nodeLaunches) {
+      String key = toNodeRecord(launch).getKey();
+      for (NodeLaunch running : nodeLaunches.values()) {
+        if (running.restored && toNodeRecord(running).getKey().equals(key)) {
+          replaced = running;
+          break;
+        }
+      }
+      if (replaced != null) {
+        nodeLaunches.remove(replaced.nodeMain);
+      }
+      nodeLaunches.put(launch.nodeMain, launch);
+    }
+    if (replaced != null) {
+      metrics.onShutdownRequested(replaced.nodeMain);
+      getNodeMainExecutor(replaced.lane).shutdownNodeMain(replaced.nodeMain);
+    }
+    persistNodes();
+    launch(launch);
+  }
+
+  /**
+   * Hands the node to the {@link RegistrationScheduler}, which launches it
+   * once the master can take another registration.
+   */
+  private void launch(final NodeLaunch launch) {
+    final NodeListener metricsListener = metrics.newNodeListener(launch.nodeMain);
+    ensureExecutors();
+    synchronized (launch) {
+      launch.state = NodeLaunch.State.QUEUED;
+    }
+    registrationScheduler.submit(new RegistrationScheduler.Registration() {
+      @Override
+      public boolean skip() {
+        boolean stopped = launch.batch != null && launch.batch.isStopped();
+        synchronized (nodeLaunches) {
+          if (nodeLaunches.get(launch.nodeMain) != launch) {
+            // Shut down or replaced while it was queued.
+            stopped = true;
+          } else if (stopped) {
+            // The rest of a cancelled or failed batch is not launched anymore.
+            nodeLaunches.remove(launch.nodeMain);
+          }
+        }
+        if (stopped) {
+          synchronized (launch) {
+            launch.state = NodeLaunch.State.STOPPED;
+          }
+          if (launch.batchMember != null) {
+            launch.batchMember.stopped(new CancellationException(
+                launch.nodeMain.getDefaultNodeName() + " was shut down before it was launched"));
+          }
+          persistNodes();
+        }
+        return stopped;
+      }
+
+      @Override
+      public void launch(NodeListener admissionListener) {
+        Collection<NodeListener> nodeListeners = new ArrayList<NodeListener>();
+        if (launch.nodeListeners != null) {
+          nodeListeners.addAll(launch.nodeListeners);
+        }
+        nodeListeners.add(metricsListener);
+        nodeListeners.add(admissionListener);
+        nodeListeners.add(new NodeListener() {
+          @Override
+          public void onStart(ConnectedNode connectedNode) {
+          }
+
+          @Override
+          public void onShutdown(Node node) {
+          }
+
+          @Override
+          public void onShutdownComplete(Node node) {
+            onNodeShutdownComplete(launch);
+          }
+
+          @Override
+          public void onError(Node node, Throwable throwable) {
+          }
+        });
+        synchronized (launch) {
+          launch.state = NodeLaunch.State.RUNNING;
+        }
+        try {
+          getNodeMainExecutor(launch.lane)
+              .execute(launch.nodeMain, launch.nodeConfiguration, nodeListeners);
+        } catch (RuntimeException e) {
+          // The scheduler retries the launch or gives up with this exception.
+          runPendingRelaunch(launch);
+          throw e;
+        }
+      }
+
+      @Override
+      public void abort(final Runnable retry) {
+        relaunchAfterShutdown(launch, new Runnable() {
+          @Override
+          public void run() {
+            synchronized (launch) {
+              launch.state = NodeLaunch.State.QUEUED;
+            }
+            retry.run();
+          }
+        });
+      }
+
+      @Override
+      public void giveUp(Throwable cause) {
+        if (launch.batch != null) {
+          launch.batch.fail(cause);
+        }
+      }
+
+      @Override
+      public String toString() {
+        return launch.nodeMain.getDefaultNodeName().toString();
+      }
+    });
+  }
+
+  /**
+   * Shuts the node down and runs {@code relaunch} once its shutdown is
+   * complete, so that the same {@link NodeMain} never runs twice at once. A
+   * node which has not been launched yet, or which is already waiting for its
+   * shutdown to be launched again, is left alone: the pending launch picks up
+   * its current configuration.
+   */
+  private void relaunchAfterShutdown(NodeLaunch launch, Runnable relaunch) {
+    synchronized (launch) {
+      if (launch.state == NodeLaunch.State.QUEUED
+          || launch.state == NodeLaunch.State.RELAUNCHING) {
+        return;
+      }
+      if (launch.state == NodeLaunch.State.RUNNING) {
+        launch.state = NodeLaunch.State.RELAUNCHING;
+        launch.relaunch = relaunch;
+        relaunch = null;
+      }
+    }
+    if (relaunch != null) {
+      relaunch.run();
+      return;
+    }
+    metrics.onShutdownRequested(launch.nodeMain);
+    getNodeMainExecutor(launch.lane).shutdownNodeMain(launch.nodeMain);
+  }
+
+  private void onNodeShutdownComplete(NodeLaunch launch) {
+    if (!runPendingRelaunch(launch) && launch.batchMember != null) {
+      launch.batchMember.stopped(new CancellationException(
+          launch.nodeMain.getDefaultNodeName() + " was shut down before it started"));
+    }
+  }
+
+  /**
+   * Marks the node as stopped and launches it again if that was requested.
+   *
+   * @return whether the node is launched again
+   */
+  private boolean runPendingRelaunch(NodeLaunch launch) {
+    Runnable relaunch;
+    synchronized (launch) {
+      relaunch = launch.relaunch;
+      launch.relaunch = null;
+      launch.state = NodeLaunch.State.STOPPED;
+    }
+    if (relaunch == null) {
+      return false;
+    }
+    relaunch.run();
+    return true;
   }
 
   @Override
@@ -133,14 +625,55 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
     execute(nodeMain, nodeConfiguration, null);
   }
 
+  /**
+   * Launches all given nodes. Returns immediately, the nodes are queued with
+   * the {@link RegistrationScheduler} like any other node, so at most
+   * {@link #setMaxConcurrentRegistrations(int)} of them register with the
+   * master at the same time.
+   *
+   * @param nodes the nodes to launch with their configurations, launched in
+   *        iteration order
+   * @return a future which completes once every node has started
+   */
+  public NodeBatchLaunch execute(Map<NodeMain, NodeConfiguration> nodes) {
+    NodeBatchLaunch batch = new NodeBatchLaunch(nodes.size());
+    for (Map.Entry<NodeMain, NodeConfiguration> entry : nodes.entrySet()) {
+      try {
+        NodeBatchLaunch.Member member = batch.newMember();
+        NodeLaunch launch = new NodeLaunch(entry.getKey(), entry.getValue(),
+            Collections.<NodeListener>singletonList(member), ExecutorPolicy.Lane.DEFAULT);
+        launch.batch = batch;
+        launch.batchMember = member;
+        execute(launch);
+      } catch (RuntimeException e) {
+        batch.fail(e);
+        break;
+      }
+    }
+    return batch;
+  }
+
   @Override
   public ScheduledExecutorService getScheduledExecutorService() {
-    return nodeMainExecutor.getScheduledExecutorService();
+    return getNodeMainExecutor(ExecutorPolicy.Lane.DEFAULT).getScheduledExecutorService();
   }
 
   @Override
   public void shutdownNodeMain(NodeMain nodeMain) {
-    nodeMainExecutor.shutdownNodeMain(nodeMain);
+    NodeLaunch launch;
+    synchronized (nodeLaunches) {
+      launch = nodeLaunches.remove(nodeMain);
+    }
+    if (launch != null) {
+      synchronized (launch) {
+        // Not to be launched again once this shutdown is complete.
+        launch.relaunch = null;
+      }
+    }
+    metrics.onShutdownRequested(nodeMain);
+    getNodeMainExecutor(launch != null ? launch.lane : ExecutorPolicy.Lane.DEFAULT)
+        .shutdownNodeMain(nodeMain);
+    persistNodes();
   }
 
   @Override
@@ -176,6 +709,7 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
   }
 
   public void addListener(NodeMainExecutorServiceListener listener) {
+    ensureExecutors();
     listeners.add(listener);
   }
 
@@ -183,9 +717,44 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
     return isShuttingDown;
   }
 
+  /**
+   * Sets how long all nodes together may take to shut down when the service
+   * is destroyed. Nodes which take longer are interrupted.
+   */
+  public void setShutdownDeadlineMillis(long shutdownDeadlineMillis) {
+    Preconditions.checkArgument(shutdownDeadlineMillis > 0);
+    this.shutdownDeadlineMillis = shutdownDeadlineMillis;
+  }
 
-  private void signalOnShutdown() {
+  /**
+   * @return the phase timings of the shutdown, or {@code null} if the service
+   *         has not been destroyed yet
+   */
+  public ShutdownCoordinator.Report getShutdownReport() {
+    return shutdownReport;
+  }
+
+
+  /**
+   * Signals all listeners and records how long each of them took.
+   */
+  private void signal(final SignalRunnable<NodeMainExecutorServiceListener> signalRunnable) {
+    ensureExecutors();
     listeners.signal(new SignalRunnable<NodeMainExecutorServiceListener>() {
+      @Override
+      public void run(NodeMainExecutorServiceListener nodeMainExecutorServiceListener) {
+        long start = System.nanoTime();
+        try {
+          signalRunnable.run(nodeMainExecutorServiceListener);
+        } finally {
+          metrics.recordListenerDispatch(System.nanoTime() - start);
+        }
+      }
+    });
+  }
+
+  private void signalOnShutdown() {
+    signal(new SignalRunnable<NodeMainExecutorServiceListener>() {
       @Override
       public void run(NodeMainExecutorServiceListener nodeMainExecutorServiceListener) {
         nodeMainExecutorServiceListener.onShutdown(NodeMainExecutorService.this);
@@ -193,44 +762,255 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
     });
   }
 
+  private void signalOnMasterUriAvailable(final URI uri) {
+    signal(new SignalRunnable<NodeMainExecutorServiceListener>() {
+      @Override
+      public void run(NodeMainExecutorServiceListener nodeMainExecutorServiceListener) {
+        if (nodeMainExecutorServiceListener instanceof MasterUriListener) {
+          ((MasterUriListener) nodeMainExecutorServiceListener)
+              .onMasterUriAvailable(NodeMainExecutorService.this, uri);
+        }
+      }
+    });
+  }
+
+  private void signalOnMasterHealthChanged(final MasterHealthEvent event) {
+    signal(new SignalRunnable<NodeMainExecutorServiceListener>() {
+      @Override
+      public void run(NodeMainExecutorServiceListener nodeMainExecutorServiceListener) {
+        if (nodeMainExecutorServiceListener instanceof MasterHealthListener) {
+          ((MasterHealthListener) nodeMainExecutorServiceListener)
+              .onMasterHealthChanged(NodeMainExecutorService.this, event);
+        }
+      }
+    });
+  }
+
   @Override
   public void onDestroy() {
     toast("Shutting down...");
-    nodeMainExecutor.shutdown();
-    if (rosCore != null) {
-      rosCore.shutdown();
+    discardWarmMaster();
+    stopMetricsExport();
+    disableFailover();
+    stopHealthMonitor();
+    ShutdownCoordinator coordinator = new ShutdownCoordinator(shutdownDeadlineMillis);
+    synchronized (this) {
+      if (registrationScheduler != null) {
+        registrationScheduler.shutdown();
+      }
+      if (nodeMainExecutors != null) {
+        synchronized (nodeLaunches) {
+          for (NodeLaunch launch : nodeLaunches.values()) {
+            metrics.onShutdownRequested(launch.nodeMain);
+            coordinator.addNode(launch.nodeMain, nodeMainExecutors.get(
+                executorPolicy.resolve(launch.lane)));
+          }
+          nodeLaunches.clear();
+        }
+        for (NodeMainExecutor nodeMainExecutor : nodeMainExecutors.values()) {
+          coordinator.addExecutor(nodeMainExecutor);
+        }
+      }
     }
+    coordinator.setRosCore(rosCore);
+    shutdownReport = coordinator.run();
     if (wakeLock.isHeld()) {
       wakeLock.release();
     }
     if (wifiLock.isHeld()) {
       wifiLock.release();
     }
+    unregisterReceiver(networkChangeReceiver);
+    // An orderly shutdown ends the session, only a killed process restores it.
+    sessionStore.clear();
     super.onDestroy();
   }
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent == null) {
+      // Restarted by the system after the process was killed.
+      restoreSession();
+      return sticky ? START_STICKY : START_NOT_STICKY;
+    }
     if (intent.getAction() == null) {
-      return START_NOT_STICKY;
+      return sticky ? START_STICKY : START_NOT_STICKY;
     }
     if (intent.getAction().equals(ACTION_START)) {
       Preconditions.checkArgument(intent.hasExtra(EXTRA_NOTIFICATION_TICKER));
       Preconditions.checkArgument(intent.hasExtra(EXTRA_NOTIFICATION_TITLE));
-      Notification notification =
-          new Notification(R.mipmap.icon, intent.getStringExtra(EXTRA_NOTIFICATION_TICKER),
-              System.currentTimeMillis());
-      Intent notificationIntent = new Intent(this, NodeMainExecutorService.class);
-      notificationIntent.setAction(NodeMainExecutorService.ACTION_SHUTDOWN);
-      PendingIntent pendingIntent = PendingIntent.getService(this, 0, notificationIntent, 0);
-      notification.setLatestEventInfo(this, intent.getStringExtra(EXTRA_NOTIFICATION_TITLE),
-          "Tap to shutdown.", pendingIntent);
-      startForeground(ONGOING_NOTIFICATION, notification);
+      startForeground(intent.getStringExtra(EXTRA_NOTIFICATION_TICKER),
+          intent.getStringExtra(EXTRA_NOTIFICATION_TITLE));
+      if (intent.hasExtra(EXTRA_EXECUTOR_POLICY)) {
+        applyExecutorPolicy((ExecutorPolicy) intent.getSerializableExtra(EXTRA_EXECUTOR_POLICY));
+      }
+      if (intent.hasExtra(EXTRA_STICKY)) {
+        setSticky(intent.getBooleanExtra(EXTRA_STICKY, false));
+      }
     }
     if (intent.getAction().equals(ACTION_SHUTDOWN)) {
       shutdown();
     }
-    return START_NOT_STICKY;
+    return sticky ? START_STICKY : START_NOT_STICKY;
+  }
+
+  private void startForeground(String ticker, String title) {
+    Notification notification =
+        new Notification(R.mipmap.icon, ticker, System.currentTimeMillis());
+    Intent notificationIntent = new Intent(this, NodeMainExecutorService.class);
+    notificationIntent.setAction(NodeMainExecutorService.ACTION_SHUTDOWN);
+    PendingIntent pendingIntent = PendingIntent.getService(this, 0, notificationIntent, 0);
+    notification.setLatestEventInfo(this, title, "Tap to shutdown.", pendingIntent);
+    startForeground(ONGOING_NOTIFICATION, notification);
+  }
+
+  /**
+   * In sticky mode the system restarts the service after its process was
+   * killed, and the service restores the persisted session: it reconnects to
+   * the same master, or starts a new one if it had created the last one, and
+   * launches all nodes again which have a public no-argument constructor, on
+   * executors created with the same {@link ExecutorPolicy}. Nodes keep their
+   * lane, name, namespace, remappings and public or private host.
+   * Clients which execute the same nodes again replace the restored ones.
+   */
+  public void setSticky(boolean sticky) {
+    this.sticky = sticky;
+    if (sessionStore != null) {
+      sessionStore.saveSticky(sticky);
+    }
+  }
+
+  public boolean isSticky() {
+    return sticky;
+  }
+
+  private void restoreSession() {
+    final SessionStore.Session session = sessionStore.load();
+    if (session == null || !session.isSticky()) {
+      Log.i(TAG, "No session to restore.");
+      stopSelf();
+      return;
+    }
+    Log.i(TAG, "Restoring session of " + session.getMasterUri());
+    sticky = true;
+    if (session.getExecutorPolicy() != null) {
+      // Before anything below creates the executors.
+      applyExecutorPolicy(session.getExecutorPolicy());
+    }
+    CharSequence label = getApplicationInfo().loadLabel(getPackageManager());
+    startForeground(label.toString(), label.toString());
+    rosHostname = session.getRosHostname();
+    networkInterface = session.getNetworkInterface();
+    masterTitle = session.getMasterTitle();
+    if (session.getMasterAddress() != null) {
+      try {
+        // A literal address, this does not hit the resolver.
+        masterAddress = InetAddress.getByName(session.getMasterAddress());
+      } catch (UnknownHostException e) {
+        masterAddress = null;
+      }
+    }
+    final Future<URI> masterStart;
+    if (session.isMasterCreated()) {
+      masterStart = startMasterAsync(session.isMasterPrivate());
+    } else {
+      masterStart = null;
+      setMasterUri(session.getMasterUri());
+    }
+    getScheduledExecutorService().execute(new Runnable() {
+      @Override
+      public void run() {
+        if (masterStart != null) {
+          try {
+            masterStart.get();
+          } catch (Exception e) {
+            Log.e(TAG, "Unable to restart the master of the restored session.", e);
+            return;
+          }
+        }
+        relaunchNodes(session.getNodes());
+      }
+    });
+  }
+
+  private void relaunchNodes(List<SessionStore.NodeRecord> nodes) {
+    String host = rosHostname != null ? rosHostname : HostResolver.getInstance()
+        .getHostAddress(networkInterface);
+    for (SessionStore.NodeRecord node : nodes) {
+      NodeMain nodeMain;
+      try {
+        nodeMain = (NodeMain) Class.forName(node.getClassName()).newInstance();
+      } catch (Exception e) {
+        Log.w(TAG, "Cannot restore node " + node.getClassName() + ": " + e);
+        continue;
+      }
+      NodeConfiguration nodeConfiguration = node.isPrivateHost()
+          ? NodeConfiguration.newPrivate(masterUri)
+          : NodeConfiguration.newPublic(host, masterUri);
+      if (node.getNodeName() != null) {
+        nodeConfiguration.setNodeName(node.getNodeName());
+      }
+      Map<GraphName, GraphName> remappings = new HashMap<GraphName, GraphName>();
+      for (Map.Entry<String, String> remapping : node.getRemappings().entrySet()) {
+        remappings.put(GraphName.of(remapping.getKey()), GraphName.of(remapping.getValue()));
+      }
+      nodeConfiguration.setParentResolver(new NameResolver(
+          node.getNamespace() != null ? GraphName.of(node.getNamespace()) : GraphName.root(),
+          remappings));
+      NodeLaunch launch = new NodeLaunch(nodeMain, nodeConfiguration, null, node.getLane());
+      launch.restored = true;
+      execute(launch);
+    }
+  }
+
+  private static SessionStore.NodeRecord toNodeRecord(NodeLaunch launch) {
+    NodeConfiguration nodeConfiguration = launch.nodeConfiguration;
+    GraphName nodeName = nodeConfiguration.getNodeName();
+    NameResolver resolver = nodeConfiguration.getParentResolver();
+    Map<String, String> remappings = new LinkedHashMap<String, String>();
+    for (Map.Entry<GraphName, GraphName> remapping : resolver.getRemappings().entrySet()) {
+      remappings.put(remapping.getKey().toString(), remapping.getValue().toString());
+    }
+    GraphName namespace = resolver.getNamespace();
+    return new SessionStore.NodeRecord(launch.nodeMain.getClass().getName(),
+        nodeName != null ? nodeName.toString() : null, launch.lane,
+        nodeConfiguration.getTcpRosAdvertiseAddressFactory() instanceof PrivateAdvertiseAddressFactory,
+        namespace.isRoot() ? null : namespace.toString(), remappings);
+  }
+
+  private void persistNodes() {
+    if (sessionStore == null) {
+      return;
+    }
+    List<SessionStore.NodeRecord> nodes = new ArrayList<SessionStore.NodeRecord>();
+    synchronized (nodeLaunches) {
+      for (NodeLaunch launch : nodeLaunches.values()) {
+        nodes.add(toNodeRecord(launch));
+      }
+    }
+    sessionStore.saveNodes(nodes);
+  }
+
+  private void persistMaster() {
+    if (sessionStore != null) {
+      sessionStore.saveMaster(masterUri, masterTitle,
+          masterAddress != null ? masterAddress.getHostAddress() : null, masterCreated,
+          masterPrivate);
+    }
+  }
+
+  private void persistHost() {
+    if (sessionStore != null) {
+      sessionStore.saveHost(networkInterface, rosHostname);
+    }
+  }
+
+  private synchronized void applyExecutorPolicy(ExecutorPolicy policy) {
+    if (nodeMainExecutors != null) {
+      Log.w(TAG, "Executors already running, ignoring " + policy);
+      return;
+    }
+    setExecutorPolicy(policy);
   }
 
   @Override
@@ -243,11 +1023,52 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
   }
 
   public void setMasterUri(URI uri) {
+    if (uri != null) {
+      discardWarmMaster();
+    }
     masterUri = uri;
+    masterCreated = false;
+    persistMaster();
+    startHealthMonitor();
+    if (uri != null) {
+      signalOnMasterUriAvailable(uri);
+    }
+  }
+
+  /**
+   * @return the address of the master which answered first when it was
+   *         chosen, or {@code null} if it is not known
+   */
+  public InetAddress getMasterAddress() {
+    return masterAddress;
+  }
+
+  public void setMasterAddress(InetAddress address) {
+    masterAddress = address;
+    synchronized (this) {
+      if (healthMonitor != null) {
+        healthMonitor.setMasterAddress(address);
+      }
+    }
+    persistMaster();
   }
 
   public void setRosHostname(String hostname) {
     rosHostname = hostname;
+    persistHost();
+  }
+
+  /**
+   * @return the name of the network interface the host address was taken
+   *         from, or {@code null} for the default one
+   */
+  public String getNetworkInterface() {
+    return networkInterface;
+  }
+
+  public void setNetworkInterface(String networkInterface) {
+    this.networkInterface = networkInterface;
+    persistHost();
   }
 
   public String getRosHostname() {
@@ -256,6 +1077,7 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
 
   public void setMasterTitle(String title) {
     masterTitle = title;
+    persistMaster();
   }
 
   public String getMasterTitle() {
@@ -273,20 +1095,14 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
   }
 
   /**
-   * Starts a new ros master in an AsyncTask.
+   * Starts a new ros master and blocks until it is running.
+   * <p/>
+   * Prefer {@link #startMasterAsync(boolean)} on the UI thread.
    * @param isPrivate
    */
   public void startMaster(boolean isPrivate) {
-    AsyncTask<Boolean, Void, URI> task = new AsyncTask<Boolean, Void, URI>() {
-      @Override
-      protected URI doInBackground(Boolean[] params) {
-        NodeMainExecutorService.this.startMasterBlocking(params[0]);
-        return NodeMainExecutorService.this.getMasterUri();
-      }
-    };
-    task.execute(isPrivate);
     try {
-      task.get();
+      startMasterAsync(isPrivate).get();
     } catch (InterruptedException e) {
       throw new RosRuntimeException(e);
     } catch (ExecutionException e) {
@@ -294,25 +1110,196 @@ public class NodeMainExecutorService extends Service implements NodeMainExecutor
     }
   }
 
+  /**
+   * Starts a new ros master in the background. Once it is running all
+   * registered {@link MasterUriListener}s are notified.
+   *
+   * @param isPrivate
+   * @return the {@link URI} of the new master once it has started
+   */
+  public Future<URI> startMasterAsync(final boolean isPrivate) {
+    // Runs on its own thread like warmUpMaster(): the node pools may reject
+    // tasks when saturated, and the start must not hold up a node's thread.
+    FutureTask<URI> task = new FutureTask<URI>(new Callable<URI>() {
+      @Override
+      public URI call() {
+        startMasterBlocking(isPrivate);
+        return getMasterUri();
+      }
+    });
+    new Thread(task, "MasterStart").start();
+    return task;
+  }
+
   /**
    * Private blocking method to start a Ros Master.
    * @param isPrivate
    */
   private void startMasterBlocking(boolean isPrivate) {
-    if (isPrivate) {
-      rosCore = RosCore.newPrivate();
-    } else if (rosHostname != null) {
-      rosCore = RosCore.newPublic(rosHostname, 11311);
+    StartupTrace.getInstance().mark(StartupTrace.Phase.MASTER_START);
+    RosCore warmCore = isPrivate ? takeWarmMaster() : null;
+    if (warmCore != null) {
+      rosCore = warmCore;
     } else {
-      rosCore = RosCore.newPublic(11311);
-    }
-    rosCore.start();
-    try {
-      rosCore.awaitStart();
-    } catch (Exception e) {
-      throw new RosRuntimeException(e);
+      discardWarmMaster();
+      if (isPrivate) {
+        rosCore = RosCore.newPrivate();
+      } else if (rosHostname != null) {
+        rosCore = RosCore.newPublic(rosHostname, 11311);
+      } else {
+        rosCore = RosCore.newPublic(11311);
+      }
+      rosCore.start();
+      try {
+        rosCore.awaitStart();
+      } catch (Exception e) {
+        throw new RosRuntimeException(e);
+      }
     }
     masterUri = rosCore.getUri();
+    masterCreated = true;
+    masterPrivate = isPrivate;
+    persistMaster();
+    StartupTrace.getInstance().mark(StartupTrace.Phase.MASTER_READY);
+    startHealthMonitor();
+    signalOnMasterUriAvailable(masterUri);
+  }
+
+  /**
+   * (Re)starts the heartbeat against the current master. Health changes are
+   * published to all registered {@link MasterHealthListener}s.
+   */
+  private synchronized void startHealthMonitor() {
+    stopHealthMonitor();
+    if (masterUri == null) {
+      return;
+    }
+    healthMonitor = new MasterHealthMonitor(masterUri, masterAddress,
+        new MasterHealthMonitor.Listener() {
+          @Override
+          public void onMasterHealthChanged(MasterHealthEvent event) {
+            signalOnMasterHealthChanged(event);
+            MasterFailover currentFailover = failover;
+            if (currentFailover != null) {
+              currentFailover.onMasterHealthChanged(event);
+            }
+          }
+        });
+    healthMonitor.start();
+  }
+
+  public synchronized void stopHealthMonitor() {
+    if (healthMonitor != null) {
+      healthMonitor.stop();
+      healthMonitor = null;
+    }
+  }
+
+  /**
+   * Enables automatic failover. Once the current master is lost all running
+   * nodes are moved to the first healthy master of the given candidates.
+   *
+   * @param candidates the alternate masters, in order of preference
+   * @param rankByLatency if {@code true} the reachable candidate with the
+   *        lowest round trip is chosen instead of the first reachable one
+   */
+  public synchronized void enableFailover(List<URI> candidates, boolean rankByLatency) {
+    disableFailover();
+    failover = new MasterFailover(this, candidates, rankByLatency);
+  }
+
+  public synchronized void disableFailover() {
+    if (failover != null) {
+      failover.shutdown();
+      failover = null;
+    }
+  }
+
+  /**
+   * Switches to the given master and launches all running nodes again against
+   * it.
+   */
+  void failOver(URI uri, InetAddress address) {
+    List<NodeLaunch> launches;
+    synchronized (nodeLaunches) {
+      launches = new ArrayList<NodeLaunch>(nodeLaunches.values());
+    }
+    if (address != null) {
+      uri = MasterProber.withAddress(uri, address);
+    }
+    masterAddress = address;
+    setMasterUri(uri);
+    for (final NodeLaunch launch : launches) {
+      NodeConfiguration nodeConfiguration = NodeConfiguration.copyOf(launch.nodeConfiguration);
+      nodeConfiguration.setMasterUri(uri);
+      launch.nodeConfiguration = nodeConfiguration;
+      // Executing the node again before the old one has shut down would leave
+      // two nodes of the same NodeMain running.
+      relaunchAfterShutdown(launch, new Runnable() {
+        @Override
+        public void run() {
+          launch(launch);
+        }
+      });
+    }
+    signalOnMasterHealthChanged(new MasterHealthEvent(MasterHealthEvent.Type.FAILED_OVER, uri,
+        0, null, getMasterLatency()));
+  }
+
+  /**
+   * @return the heartbeat round trip statistics of the current master, or
+   *         {@code null} if no master is monitored
+   */
+  public synchronized LatencyHistogram.Snapshot getMasterLatency() {
+    return healthMonitor != null ? healthMonitor.getLatency() : null;
+  }
+
+  /**
+   * @return the health of the current master, or {@code null} if no master is
+   *         monitored
+   */
+  public synchronized MasterHealthMonitor.State getMasterHealth() {
+    return healthMonitor != null ? healthMonitor.getState() : null;
+  }
+
+  public NodeMainExecutorMetrics.Snapshot getMetrics() {
+    return metrics.snapshot();
+  }
+
+  /**
+   * Hands a {@link NodeMainExecutorMetrics.Snapshot} to the given listener
+   * every {@code periodMillis} until {@link #stopMetricsExport()} is called.
+   */
+  public synchronized void startMetricsExport(long periodMillis,
+                                              final NodeMainExecutorMetrics.Listener listener) {
+    stopMetricsExport();
+    metricsExport = getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        listener.onMetricsSnapshot(metrics.snapshot());
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stopMetricsExport() {
+    if (metricsExport != null) {
+      metricsExport.cancel(false);
+      metricsExport = null;
+    }
+  }
+
+  /**
+   * @return the timeline of the startup phases of this process
+   */
+  public StartupTrace getStartupTrace() {
+    return StartupTrace.getInstance();
+  }
+
+  /**
+   * Writes the startup timeline as a Chrome trace to the given file.
+   */
+  public void dumpStartupTrace(File file) throws IOException {
+    StartupTrace.getInstance().writeChromeTrace(file);
   }
 
   public void toast(final String text) {
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.net.InetAddress;
+
+/**
+ * Outcome of a single reachability probe against a ROS master.
+ */
+public final class ProbeResult {
+
+  private final String masterUri;
+  private final boolean reachable;
+  private final long roundTripMillis;
+  private final String error;
+  private final InetAddress address;
+
+  private ProbeResult(String masterUri, boolean reachable, long roundTripMillis, String error,
+                      InetAddress address) {
+    this.masterUri = masterUri;
+    this.reachable = reachable;
+    this.roundTripMillis = roundTripMillis;
+    this.error = error;
+    this.address = address;
+  }
+
+  static ProbeResult reachable(String masterUri, long roundTripMillis, InetAddress address) {
+    return new ProbeResult(masterUri, true, roundTripMillis, null, address);
+  }
+
+  static ProbeResult unreachable(String masterUri, String error) {
+    return new ProbeResult(masterUri, false, -1, error, null);
+  }
+
+  /**
+   * @return the master URI exactly as it is stored in the connections table
+   */
+  public String getMasterUri() {
+    return masterUri;
+  }
+
+  public boolean isReachable() {
+    return reachable;
+  }
+
+  /**
+   * @return the measured round trip in milliseconds, or -1 if the master was
+   *         not reachable
+   */
+  public long getRoundTripMillis() {
+    return roundTripMillis;
+  }
+
+  /**
+   * @return a human readable reason for the failure, or {@code null}
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * @return the address of the master which answered first, or {@code null} if
+   *         the master was not reachable
+   */
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public String toString() {
+    if (reachable) {
+      return masterUri + " reachable (" + roundTripMillis + " ms)";
+    }
+    return masterUri + " unreachable: " + error;
+  }
+}
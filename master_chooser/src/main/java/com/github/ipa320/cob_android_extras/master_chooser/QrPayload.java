@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.content.ContentValues;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the contents of connection QR codes.
+ * <p/>
+ * A code either holds a single master as two lines, title and URL, or any
+ * number of them in the versioned format:
+ * <pre>
+ * ROSMASTERS/1
+ * part 1/3 7f3a
+ * title&lt;TAB&gt;url
+ * title&lt;TAB&gt;url
+ * </pre>
+ * The part line is optional and splits a cell which does not fit into one
+ * code across several codes; use {@link Assembler} to collect them. The token
+ * after the part count identifies the sequence and should differ between
+ * exports, it may be left out by older generators.
+ */
+final class QrPayload {
+
+  static final String HEADER = "ROSMASTERS/1";
+  // The part count comes from the scanned text, it sizes the assembler.
+  static final int MAX_PARTS = 64;
+  private static final String HEADER_PREFIX = "ROSMASTERS/";
+  private static final Pattern PART = Pattern.compile("part\\s+(\\d+)\\s*/\\s*(\\d+)(?:\\s+(\\S+))?");
+
+  /**
+   * The masters of one scanned code.
+   */
+  static final class Part {
+
+    private final String contents;
+    private final int index;
+    private final int count;
+    private final String sequence;
+    private final List<ContentValues> connections;
+    private final int invalid;
+
+    Part(String contents, int index, int count, String sequence,
+        List<ContentValues> connections, int invalid) {
+      this.contents = contents;
+      this.index = index;
+      this.count = count;
+      this.sequence = sequence;
+      this.connections = Collections.unmodifiableList(connections);
+      this.invalid = invalid;
+    }
+
+    /**
+     * @return the scanned code this part was parsed from
+     */
+    String getContents() {
+      return contents;
+    }
+
+    /**
+     * @return the one based index of this part
+     */
+    int getIndex() {
+      return index;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    /**
+     * @return the sequence ID of the part line, or null if the code has none
+     */
+    String getSequence() {
+      return sequence;
+    }
+
+    List<ContentValues> getConnections() {
+      return connections;
+    }
+
+    /**
+     * @return the number of lines which were skipped because they could not be
+     *         parsed
+     */
+    int getInvalid() {
+      return invalid;
+    }
+  }
+
+  /**
+   * Collects the parts of a split payload in any order. Scanning a part of a
+   * different sequence starts over: one with another sequence ID or part
+   * count, or, for codes without an ID, a part whose index was already
+   * scanned with different contents.
+   */
+  static final class Assembler {
+
+    private Part[] parts;
+    private String sequence;
+    private int received;
+
+    /**
+     * @return whether all parts have been received
+     */
+    boolean add(Part part) {
+      Part previous = parts == null || parts.length != part.getCount()
+          ? null : parts[part.getIndex() - 1];
+      if (parts == null || parts.length != part.getCount()
+          || !equal(sequence, part.getSequence())
+          || (previous != null && !previous.getContents().equals(part.getContents()))) {
+        parts = new Part[part.getCount()];
+        sequence = part.getSequence();
+        received = 0;
+      }
+      if (parts[part.getIndex() - 1] == null) {
+        received++;
+      }
+      parts[part.getIndex() - 1] = part;
+      return received == parts.length;
+    }
+
+    /**
+     * @return the scanned codes of the parts received so far, null for the
+     *         missing ones, or null if no sequence is in progress
+     */
+    String[] saveState() {
+      if (parts == null) {
+        return null;
+      }
+      String[] contents = new String[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        contents[i] = parts[i] == null ? null : parts[i].getContents();
+      }
+      return contents;
+    }
+
+    /**
+     * Continues the sequence saved by {@link #saveState()}.
+     */
+    void restoreState(String[] contents) {
+      reset();
+      if (contents == null) {
+        return;
+      }
+      for (String code : contents) {
+        if (code != null) {
+          add(parse(code));
+        }
+      }
+    }
+
+    int getReceived() {
+      return received;
+    }
+
+    int getCount() {
+      return parts == null ? 0 : parts.length;
+    }
+
+    /**
+     * @return the masters of all parts in part order
+     */
+    List<ContentValues> getConnections() {
+      List<ContentValues> connections = new ArrayList<ContentValues>();
+      for (Part part : parts) {
+        if (part != null) {
+          connections.addAll(part.getConnections());
+        }
+      }
+      return connections;
+    }
+
+    int getInvalid() {
+      int invalid = 0;
+      for (Part part : parts) {
+        if (part != null) {
+          invalid += part.getInvalid();
+        }
+      }
+      return invalid;
+    }
+
+    void reset() {
+      parts = null;
+      sequence = null;
+      received = 0;
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  private QrPayload() {
+  }
+
+  /**
+   * @throws IllegalArgumentException if the contents are neither a legacy
+   *         code nor a supported version of the payload format
+   */
+  static Part parse(String contents) {
+    BufferedReader lines = new BufferedReader(new StringReader(contents));
+    try {
+      String first = nextLine(lines);
+      if (first == null) {
+        throw new IllegalArgumentException("Empty QR code");
+      }
+      if (!first.startsWith(HEADER_PREFIX)) {
+        return parseLegacy(contents, first, lines);
+      }
+      if (!first.equals(HEADER)) {
+        throw new IllegalArgumentException("Unsupported QR code version " + first);
+      }
+      int index = 1;
+      int count = 1;
+      String sequence = null;
+      List<ContentValues> connections = new ArrayList<ContentValues>();
+      int invalid = 0;
+      String line = nextLine(lines);
+      if (line != null) {
+        Matcher part = PART.matcher(line);
+        if (part.matches()) {
+          index = Integer.parseInt(part.group(1));
+          count = Integer.parseInt(part.group(2));
+          sequence = part.group(3);
+          if (count > MAX_PARTS) {
+            throw new IllegalArgumentException("Too many parts " + line);
+          }
+          if (index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid part " + line);
+          }
+          line = nextLine(lines);
+        }
+      }
+      for (; line != null; line = nextLine(lines)) {
+        int tab = line.indexOf('\t');
+        ContentValues values = tab > 0
+            ? newConnectionValues(line.substring(0, tab).trim(), line.substring(tab + 1).trim())
+            : null;
+        if (values == null) {
+          invalid++;
+        } else {
+          connections.add(values);
+        }
+      }
+      return new Part(contents, index, count, sequence, connections, invalid);
+    } catch (IOException e) {
+      // Not thrown by a StringReader.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Part parseLegacy(String contents, String title, BufferedReader lines)
+      throws IOException {
+    String url = nextLine(lines);
+    if (url == null || nextLine(lines) != null) {
+      throw new IllegalArgumentException("Not a master QR code");
+    }
+    ContentValues values = newConnectionValues(title, url);
+    if (values == null) {
+      throw new IllegalArgumentException("Invalid master URI " + url);
+    }
+    List<ContentValues> connections = new ArrayList<ContentValues>(1);
+    connections.add(values);
+    return new Part(contents, 1, 1, null, connections, 0);
+  }
+
+  private static ContentValues newConnectionValues(String title, String url) {
+    if (title.length() == 0 || url.length() == 0) {
+      return null;
+    }
+    try {
+      MasterProber.parseMasterUri(url);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+    return ConnectionDatabaseHelper.newConnectionValues(title, url);
+  }
+
+  /**
+   * @return the next non blank line, or null at the end of the payload
+   */
+  private static String nextLine(BufferedReader lines) throws IOException {
+    String line;
+    while ((line = lines.readLine()) != null) {
+      if (line.trim().length() > 0) {
+        return line;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import com.google.common.base.Preconditions;
+
+import android.util.Log;
+
+import org.ros.internal.node.xmlrpc.XmlRpcTimeoutException;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeListener;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for nodes registering with the master.
+ * <p/>
+ * At most {@code maxInFlight} nodes are between launch and start at any time,
+ * all others wait in a FIFO queue. When the master answers with timeouts the
+ * scheduler stops admitting nodes for an exponentially growing, jittered
+ * delay, so that many nodes (or many devices) reconnecting at once do not keep
+ * hammering an overloaded master. Nodes which failed with a timeout are shut
+ * down and, once their shutdown is complete, queued again at the front, up to
+ * {@link #MAX_ATTEMPTS} times.
+ * <p/>
+ * A node which has neither started nor failed after
+ * {@link #ADMISSION_TIMEOUT_MILLIS} gives its slot back so that it cannot hold
+ * up the queue forever. This alone is not taken as a sign of an overloaded
+ * master: only timeout errors back off, whenever they arrive.
+ */
+final class RegistrationScheduler {
+
+  private static final String TAG = "RegistrationScheduler";
+
+  static final int DEFAULT_MAX_IN_FLIGHT = 4;
+  static final int MAX_ATTEMPTS = 5;
+  // A node which has not started by then no longer holds its slot.
+  static final long ADMISSION_TIMEOUT_MILLIS = 10 * 1000;
+  static final long MIN_BACKOFF_MILLIS = 250;
+  static final long MAX_BACKOFF_MILLIS = 8 * 1000;
+
+  /**
+   * A node waiting to be launched.
+   */
+  interface Registration {
+
+    /**
+     * Called once the registration is admitted, right before it is launched.
+     *
+     * @return {@code true} to drop the registration without launching the
+     *         node, e.g. because it is no longer wanted
+     */
+    boolean skip();
+
+    /**
+     * Launches the node. The given listener must be added to the node.
+     */
+    void launch(NodeListener admissionListener);
+
+    /**
+     * Shuts the node down again so that it can be retried.
+     *
+     * @param retry
+     *          queues the node again, to be run once its shutdown is complete;
+     *          may be dropped if the node is already being launched again by
+     *          other means
+     */
+    void abort(Runnable retry);
+
+    /**
+     * Called once the node failed {@link #MAX_ATTEMPTS} times in a row, or
+     * failed to launch with an error which is not retried.
+     */
+    void giveUp(Throwable cause);
+  }
+
+  private final ScheduledExecutorService executor;
+  private final Deque<Entry> queue;
+  private final Random random;
+  private final AtomicLong timeouts;
+  private final AtomicLong retries;
+  private int maxInFlight;
+  private int inFlight;
+  private int consecutiveTimeouts;
+  private long backoffUntilNanos;
+  private boolean pumpScheduled;
+  private boolean shutdown;
+
+  RegistrationScheduler(ScheduledExecutorService executor, int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0);
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    queue = new ArrayDeque<Entry>();
+    random = new Random();
+    timeouts = new AtomicLong();
+    retries = new AtomicLong();
+  }
+
+  void submit(Registration registration) {
+    synchronized (this) {
+      if (shutdown) {
+        return;
+      }
+      queue.addLast(new Entry(registration));
+    }
+    pump();
+  }
+
+  void setMaxInFlight(int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0);
+    synchronized (this) {
+      this.maxInFlight = maxInFlight;
+    }
+    pump();
+  }
+
+  /**
+   * Drops all queued registrations. Nodes which are already launched are not
+   * affected.
+   */
+  synchronized void shutdown() {
+    shutdown = true;
+    queue.clear();
+  }
+
+  synchronized int getQueueLength() {
+    return queue.size();
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  long getTimeouts() {
+    return timeouts.get();
+  }
+
+  long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return milliseconds until registrations are admitted again, 0 if the
+   *         scheduler is not backing off
+   */
+  synchronized long getBackoffMillis() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(backoffUntilNanos - System.nanoTime()));
+  }
+
+  private void pump() {
+    List<Entry> admitted = new ArrayList<Entry>();
+    synchronized (this) {
+      if (shutdown || queue.isEmpty()) {
+        return;
+      }
+      long wait = backoffUntilNanos - System.nanoTime();
+      if (wait > 0) {
+        if (!pumpScheduled) {
+          pumpScheduled = true;
+          executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+              synchronized (RegistrationScheduler.this) {
+                pumpScheduled = false;
+              }
+              pump();
+            }
+          }, wait, TimeUnit.NANOSECONDS);
+        }
+        return;
+      }
+      while (inFlight < maxInFlight && !queue.isEmpty()) {
+        admitted.add(queue.pollFirst());
+        inFlight++;
+      }
+    }
+    for (Entry entry : admitted) {
+      entry.admit();
+    }
+  }
+
+  private void release() {
+    synchronized (this) {
+      inFlight--;
+    }
+    pump();
+  }
+
+  private void releaseOnce(AtomicBoolean released) {
+    if (released.compareAndSet(false, true)) {
+      release();
+    }
+  }
+
+  private synchronized void onSuccess() {
+    consecutiveTimeouts = 0;
+  }
+
+  private synchronized void onTimeout() {
+    timeouts.incrementAndGet();
+    consecutiveTimeouts++;
+    long ceiling = Math.min(MAX_BACKOFF_MILLIS,
+        MIN_BACKOFF_MILLIS << Math.min(consecutiveTimeouts - 1, 16));
+    // Half fixed, half random so that devices backing off together spread out.
+    long delay = ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+    backoffUntilNanos = Math.max(backoffUntilNanos,
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+    Log.w(TAG, "Master timed out, backing off for " + delay + " ms.");
+  }
+
+  private void retry(final Entry entry, Throwable cause) {
+    if (entry.attempts >= MAX_ATTEMPTS) {
+      Log.e(TAG, "Giving up on " + entry.registration + " after " + entry.attempts + " attempts.");
+      entry.registration.giveUp(cause);
+      return;
+    }
+    retries.incrementAndGet();
+    entry.registration.abort(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (RegistrationScheduler.this) {
+          if (shutdown) {
+            return;
+          }
+          queue.addFirst(entry);
+        }
+        pump();
+      }
+    });
+  }
+
+  static boolean isTimeout(Throwable throwable) {
+    for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+      if (cause instanceof XmlRpcTimeoutException || cause instanceof SocketTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final class Entry {
+
+    final Registration registration;
+    int attempts;
+
+    Entry(Registration registration) {
+      this.registration = registration;
+    }
+
+    void admit() {
+      if (registration.skip()) {
+        release();
+        return;
+      }
+      attempts++;
+      // The outcome of this attempt, and the slot it holds, are each handled
+      // once.
+      final AtomicBoolean finished = new AtomicBoolean();
+      final AtomicBoolean released = new AtomicBoolean();
+      final ScheduledFuture<?> admissionTimeout = executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (!finished.get() && released.compareAndSet(false, true)) {
+            Log.i(TAG, registration + " is slow to start, admitting the next node.");
+            release();
+          }
+        }
+      }, ADMISSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      NodeListener admissionListener = new NodeListener() {
+        @Override
+        public void onStart(ConnectedNode connectedNode) {
+          if (finished.compareAndSet(false, true)) {
+            admissionTimeout.cancel(false);
+            onSuccess();
+            releaseOnce(released);
+          }
+        }
+
+        @Override
+        public void onShutdown(Node node) {
+        }
+
+        @Override
+        public void onShutdownComplete(Node node) {
+          if (finished.compareAndSet(false, true)) {
+            admissionTimeout.cancel(false);
+            releaseOnce(released);
+          }
+        }
+
+        @Override
+        public void onError(Node node, Throwable throwable) {
+          if (isTimeout(throwable) && finished.compareAndSet(false, true)) {
+            admissionTimeout.cancel(false);
+            onTimeout();
+            retry(Entry.this, throwable);
+            releaseOnce(released);
+          }
+        }
+      };
+      try {
+        registration.launch(admissionListener);
+      } catch (RuntimeException e) {
+        if (finished.compareAndSet(false, true)) {
+          admissionTimeout.cancel(false);
+          if (isTimeout(e)) {
+            onTimeout();
+            retry(this, e);
+          } else {
+            Log.e(TAG, "Failed to launch " + registration, e);
+            registration.giveUp(e);
+          }
+          releaseOnce(released);
+        }
+      }
+    }
+  }
+}
@@ -26,15 +26,17 @@ import android.os.AsyncTask;
 import android.os.IBinder;
 import android.util.Log;
 
-import org.ros.address.InetAddressFactory;
 import org.ros.exception.RosRuntimeException;
 import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
 
-import java.net.NetworkInterface;
-import java.net.SocketException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -61,6 +63,7 @@ public abstract class RosActivity extends Activity {
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
+      StartupTrace.getInstance().mark(StartupTrace.Phase.SERVICE_CONNECTED);
       nodeMainExecutorService = ((NodeMainExecutorService.LocalBinder) binder).getService();
 
       if (customMasterUri != null) {
@@ -103,20 +106,46 @@ public abstract class RosActivity extends Activity {
   @Override
   protected void onStart() {
     super.onStart();
+    StartupTrace.getInstance().mark(StartupTrace.Phase.ACTIVITY_START);
     bindNodeMainExecutorService();
   }
 
   protected void bindNodeMainExecutorService() {
+    StartupTrace.getInstance().mark(StartupTrace.Phase.SERVICE_BIND);
     Intent intent = new Intent(this, NodeMainExecutorService.class);
     intent.setAction(NodeMainExecutorService.ACTION_START);
     intent.putExtra(NodeMainExecutorService.EXTRA_NOTIFICATION_TICKER, notificationTicker);
     intent.putExtra(NodeMainExecutorService.EXTRA_NOTIFICATION_TITLE, notificationTitle);
+    ExecutorPolicy executorPolicy = getExecutorPolicy();
+    if (executorPolicy != null) {
+      intent.putExtra(NodeMainExecutorService.EXTRA_EXECUTOR_POLICY, executorPolicy);
+    }
+    intent.putExtra(NodeMainExecutorService.EXTRA_STICKY, isSessionSticky());
     startService(intent);
     Preconditions.checkState(
         bindService(intent, nodeMainExecutorServiceConnection, BIND_AUTO_CREATE),
         "Failed to bind NodeMainExecutorService.");
   }
 
+  /**
+   * Override to run the nodes of this activity on differently sized thread
+   * pools, e.g. with priority lanes for control loops.
+   *
+   * @return the {@link ExecutorPolicy} for the {@link NodeMainExecutorService},
+   *         or {@code null} for the default one
+   */
+  protected ExecutorPolicy getExecutorPolicy() {
+    return null;
+  }
+
+  /**
+   * Override to return {@code true} if the session should survive the process
+   * being killed, see {@link NodeMainExecutorService#setSticky(boolean)}.
+   */
+  protected boolean isSessionSticky() {
+    return false;
+  }
+
   @Override
   protected void onDestroy() {
     unbindService(nodeMainExecutorServiceConnection);
@@ -129,7 +158,9 @@ public abstract class RosActivity extends Activity {
     new AsyncTask<Void, Void, Void>() {
       @Override
       protected Void doInBackground(Void... params) {
+        StartupTrace.getInstance().mark(StartupTrace.Phase.INIT_START);
         RosActivity.this.init(nodeMainExecutorService);
+        StartupTrace.getInstance().mark(StartupTrace.Phase.INIT_DONE);
         return null;
       }
     }.execute();
@@ -148,6 +179,7 @@ public abstract class RosActivity extends Activity {
 
   public void startMasterChooser() {
     Preconditions.checkState(getMasterUri() == null);
+    StartupTrace.getInstance().mark(StartupTrace.Phase.CHOOSER_START);
     // Call this method on super to avoid triggering our precondition in the
     // overridden startActivityForResult().
     super.startActivityForResult(new Intent(this, MasterChooser.class), 0);
@@ -167,6 +199,41 @@ public abstract class RosActivity extends Activity {
     return nodeMainExecutorService.getMasterTitle();
   }
 
+  /**
+   * Lets the {@link NodeMainExecutorService} fail over to any of the masters
+   * saved in the {@link MasterChooser} once the current master is lost.
+   *
+   * The saved masters are read in the background, failover is enabled shortly
+   * after this method returns.
+   *
+   * @param rankByLatency if {@code true} the fastest reachable master is
+   *        chosen, otherwise the first reachable one ordered by title
+   */
+  protected void enableMasterFailover(final boolean rankByLatency) {
+    Preconditions.checkNotNull(nodeMainExecutorService);
+    final NodeMainExecutorService service = nodeMainExecutorService;
+    // Reading the saved masters may hit the disk, keep it off the UI thread.
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ConnectionDatabaseHelper db = new ConnectionDatabaseHelper(RosActivity.this);
+        List<URI> candidates = new ArrayList<URI>();
+        try {
+          for (String url : db.getUrls()) {
+            try {
+              candidates.add(MasterProber.parseMasterUri(url));
+            } catch (URISyntaxException e) {
+              Log.w("RosActivity", "Ignoring invalid master URI " + url);
+            }
+          }
+        } finally {
+          db.close();
+        }
+        service.enableFailover(candidates, rankByLatency);
+      }
+    }, "MasterFailoverSetup").start();
+  }
+
   @Override
   public void startActivityForResult(Intent intent, int requestCode) {
     Preconditions.checkArgument(requestCode != MASTER_CHOOSER_REQUEST_CODE);
@@ -180,22 +247,23 @@ public abstract class RosActivity extends Activity {
 
     if (resultCode == RESULT_OK) {
       if (requestCode == MASTER_CHOOSER_REQUEST_CODE) {
+        StartupTrace.getInstance().mark(StartupTrace.Phase.CHOOSER_RESULT);
         String host;
         String networkInterfaceName = data.getStringExtra("ROS_MASTER_NETWORK_INTERFACE");
         // Handles the default selection and prevents possible errors
         if (networkInterfaceName == null || networkInterfaceName.equals("")) {
           host = getDefaultHostAddress();
         } else {
-          try {
-            NetworkInterface networkInterface = NetworkInterface.getByName(networkInterfaceName);
-            host = InetAddressFactory.newNonLoopbackForNetworkInterface(networkInterface).getHostAddress();
-          } catch (SocketException e) {
-            throw new RosRuntimeException(e);
-          }
+          host = HostResolver.getInstance().getHostAddress(networkInterfaceName);
         }
+        nodeMainExecutorService.setNetworkInterface(networkInterfaceName);
         nodeMainExecutorService.setRosHostname(host);
+        Future<URI> masterStart = null;
         if (data.getBooleanExtra("ROS_MASTER_CREATE_NEW", false)) {
-          nodeMainExecutorService.startMaster(data.getBooleanExtra("ROS_MASTER_PRIVATE", true));
+          // Do not block the UI thread while the core starts, init() waits for
+          // it in the background instead.
+          masterStart = nodeMainExecutorService.startMasterAsync(
+              data.getBooleanExtra("ROS_MASTER_PRIVATE", true));
         } else {
           URI uri;
           try {
@@ -204,15 +272,39 @@ public abstract class RosActivity extends Activity {
             throw new RosRuntimeException(e);
           }
           String title = data.getStringExtra("ROS_MASTER_TITLE");
+          String address = data.getStringExtra("ROS_MASTER_ADDRESS");
+          if (address != null) {
+            // Connect to the address which won the race in the MasterChooser
+            // instead of resolving the master host name again.
+            try {
+              InetAddress masterAddress = InetAddress.getByName(address);
+              nodeMainExecutorService.setMasterAddress(masterAddress);
+              uri = MasterProber.withAddress(uri, masterAddress);
+            } catch (UnknownHostException e) {
+              Log.w("RosActivity", "Ignoring invalid master address " + address);
+            }
+          }
           nodeMainExecutorService.setMasterUri(uri);
           nodeMainExecutorService.setMasterTitle(title);
         }
         // Run init() in a new thread as a convenience since it often requires network access.
         Log.i("RosActivity","starting AsyncTask");
+        final Future<URI> pendingMaster = masterStart;
         new AsyncTask<Void, Void, Void>() {
           @Override
           protected Void doInBackground(Void... params) {
+            StartupTrace.getInstance().mark(StartupTrace.Phase.INIT_START);
+            if (pendingMaster != null) {
+              try {
+                pendingMaster.get();
+              } catch (InterruptedException e) {
+                throw new RosRuntimeException(e);
+              } catch (ExecutionException e) {
+                throw new RosRuntimeException(e.getCause());
+              }
+            }
             RosActivity.this.init(nodeMainExecutorService);
+            StartupTrace.getInstance().mark(StartupTrace.Phase.INIT_DONE);
             return null;
           }
         }.execute();
@@ -225,6 +317,6 @@ public abstract class RosActivity extends Activity {
   }
 
   private String getDefaultHostAddress() {
-    return InetAddressFactory.newNonLoopback().getHostAddress();
+    return HostResolver.getInstance().getHostAddress(null);
   }
 }
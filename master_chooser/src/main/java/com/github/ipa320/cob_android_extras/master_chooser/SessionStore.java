@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the session of a {@link NodeMainExecutorService} so that it can be
+ * restored after the process was killed.
+ * <p/>
+ * A session is the chosen master, the local host address and network
+ * interface, the {@link ExecutorPolicy}, and the class, name, lane and
+ * configuration of every launched node. It is kept in a single
+ * {@link SharedPreferences} file, nodes are stored as one string with a line
+ * per node and the policy in its serialized form. Writes are asynchronous.
+ */
+public class SessionStore {
+
+  private static final String TAG = "SessionStore";
+  private static final String PREFS_NAME = "master_chooser_session";
+
+  private static final String KEY_MASTER_URI = "master_uri";
+  private static final String KEY_MASTER_TITLE = "master_title";
+  private static final String KEY_MASTER_ADDRESS = "master_address";
+  private static final String KEY_MASTER_CREATED = "master_created";
+  private static final String KEY_MASTER_PRIVATE = "master_private";
+  private static final String KEY_NETWORK_INTERFACE = "network_interface";
+  private static final String KEY_ROS_HOSTNAME = "ros_hostname";
+  private static final String KEY_NODES = "nodes";
+  private static final String KEY_STICKY = "sticky";
+  private static final String KEY_EXECUTOR_POLICY = "executor_policy";
+
+  /**
+   * Class, node name, lane and configuration of a launched node.
+   */
+  public static final class NodeRecord {
+
+    private final String className;
+    private final String nodeName;
+    private final ExecutorPolicy.Lane lane;
+    private final boolean privateHost;
+    private final String namespace;
+    private final Map<String, String> remappings;
+
+    public NodeRecord(String className, String nodeName) {
+      this(className, nodeName, ExecutorPolicy.Lane.DEFAULT, false, null,
+          Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param privateHost
+     *          whether the node was configured with
+     *          {@link org.ros.node.NodeConfiguration#newPrivate}
+     * @param namespace
+     *          the namespace of the node's parent resolver, or {@code null}
+     *          for the root namespace
+     * @param remappings
+     *          the name remappings of the node's parent resolver
+     */
+    public NodeRecord(String className, String nodeName, ExecutorPolicy.Lane lane,
+                      boolean privateHost, String namespace, Map<String, String> remappings) {
+      this.className = className;
+      this.nodeName = nodeName;
+      this.lane = lane;
+      this.privateHost = privateHost;
+      this.namespace = namespace;
+      this.remappings = Collections.unmodifiableMap(new LinkedHashMap<String, String>(remappings));
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    /**
+     * @return the configured node name, or {@code null} for the default one
+     */
+    public String getNodeName() {
+      return nodeName;
+    }
+
+    public ExecutorPolicy.Lane getLane() {
+      return lane;
+    }
+
+    public boolean isPrivateHost() {
+      return privateHost;
+    }
+
+    /**
+     * @return the namespace of the node, or {@code null} for the root
+     *         namespace
+     */
+    public String getNamespace() {
+      return namespace;
+    }
+
+    public Map<String, String> getRemappings() {
+      return remappings;
+    }
+
+    /**
+     * @return a key which is equal for nodes launched from the same class
+     *         under the same name
+     */
+    String getKey() {
+      return className + "\t" + (nodeName != null ? nodeName : "");
+    }
+  }
+
+  /**
+   * Snapshot of a persisted session.
+   */
+  public static final class Session {
+
+    URI masterUri;
+    String masterTitle;
+    String masterAddress;
+    boolean masterCreated;
+    boolean masterPrivate;
+    String networkInterface;
+    String rosHostname;
+    boolean sticky;
+    ExecutorPolicy executorPolicy;
+    List<NodeRecord> nodes = Collections.emptyList();
+
+    public URI getMasterUri() {
+      return masterUri;
+    }
+
+    public String getMasterTitle() {
+      return masterTitle;
+    }
+
+    /**
+     * @return the literal address of the master, or {@code null}
+     */
+    public String getMasterAddress() {
+      return masterAddress;
+    }
+
+    /**
+     * @return {@code true} if the master was started by the service itself
+     */
+    public boolean isMasterCreated() {
+      return masterCreated;
+    }
+
+    public boolean isMasterPrivate() {
+      return masterPrivate;
+    }
+
+    public String getNetworkInterface() {
+      return networkInterface;
+    }
+
+    public String getRosHostname() {
+      return rosHostname;
+    }
+
+    public boolean isSticky() {
+      return sticky;
+    }
+
+    /**
+     * @return the policy the executors were created with, or {@code null} if
+     *         none was saved
+     */
+    public ExecutorPolicy getExecutorPolicy() {
+      return executorPolicy;
+    }
+
+    public List<NodeRecord> getNodes() {
+      return nodes;
+    }
+  }
+
+  private final SharedPreferences preferences;
+
+  public SessionStore(Context context) {
+    preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return the persisted session, or {@code null} if there is none
+   */
+  public Session load() {
+    String masterUri = preferences.getString(KEY_MASTER_URI, null);
+    boolean masterCreated = preferences.getBoolean(KEY_MASTER_CREATED, false);
+    if (masterUri == null && !masterCreated) {
+      return null;
+    }
+    Session session = new Session();
+    if (masterUri != null) {
+      try {
+        session.masterUri = new URI(masterUri);
+      } catch (URISyntaxException e) {
+        Log.w(TAG, "Dropping session with invalid master URI " + masterUri);
+        clear();
+        return null;
+      }
+    }
+    session.masterTitle = preferences.getString(KEY_MASTER_TITLE, null);
+    session.masterAddress = preferences.getString(KEY_MASTER_ADDRESS, null);
+    session.masterCreated = masterCreated;
+    session.masterPrivate = preferences.getBoolean(KEY_MASTER_PRIVATE, true);
+    session.networkInterface = preferences.getString(KEY_NETWORK_INTERFACE, null);
+    session.rosHostname = preferences.getString(KEY_ROS_HOSTNAME, null);
+    session.sticky = preferences.getBoolean(KEY_STICKY, false);
+    session.executorPolicy = decodePolicy(preferences.getString(KEY_EXECUTOR_POLICY, null));
+    session.nodes = decodeNodes(preferences.getString(KEY_NODES, ""));
+    return session;
+  }
+
+  /**
+   * Saves the master of the session. A master which was started by the service
+   * itself is saved as such, its URI changes with every start.
+   */
+  public void saveMaster(URI masterUri, String masterTitle, String masterAddress,
+                         boolean masterCreated, boolean masterPrivate) {
+    preferences.edit()
+        .putString(KEY_MASTER_URI, masterCreated || masterUri == null ? null : masterUri.toString())
+        .putString(KEY_MASTER_TITLE, masterTitle)
+        .putString(KEY_MASTER_ADDRESS, masterAddress)
+        .putBoolean(KEY_MASTER_CREATED, masterCreated)
+        .putBoolean(KEY_MASTER_PRIVATE, masterPrivate)
+        .apply();
+  }
+
+  public void saveHost(String networkInterface, String rosHostname) {
+    preferences.edit()
+        .putString(KEY_NETWORK_INTERFACE, networkInterface)
+        .putString(KEY_ROS_HOSTNAME, rosHostname)
+        .apply();
+  }
+
+  public void saveNodes(List<NodeRecord> nodes) {
+    preferences.edit().putString(KEY_NODES, encodeNodes(nodes)).apply();
+  }
+
+  public void saveSticky(boolean sticky) {
+    preferences.edit().putBoolean(KEY_STICKY, sticky).apply();
+  }
+
+  public void saveExecutorPolicy(ExecutorPolicy executorPolicy) {
+    preferences.edit().putString(KEY_EXECUTOR_POLICY, encodePolicy(executorPolicy)).apply();
+  }
+
+  public void clear() {
+    preferences.edit().clear().apply();
+  }
+
+  /**
+   * Writes a line per node: class, node name, lane, "private" or "public",
+   * namespace and the remappings as space separated {@code from=to} pairs, all
+   * separated by tabs. Graph names contain neither tabs, spaces nor '='.
+   */
+  static String encodeNodes(List<NodeRecord> nodes) {
+    StringBuilder builder = new StringBuilder();
+    for (NodeRecord node : nodes) {
+      builder.append(node.getKey())
+          .append('\t').append(node.getLane().name())
+          .append('\t').append(node.isPrivateHost() ? "private" : "public")
+          .append('\t').append(node.getNamespace() != null ? node.getNamespace() : "")
+          .append('\t');
+      String separator = "";
+      for (Map.Entry<String, String> remapping : node.getRemappings().entrySet()) {
+        builder.append(separator).append(remapping.getKey()).append('=')
+            .append(remapping.getValue());
+        separator = " ";
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Reads the lines written by {@link #encodeNodes}. Fields missing from lines
+   * of older versions get the defaults of {@link NodeRecord#NodeRecord(String, String)}.
+   */
+  static List<NodeRecord> decodeNodes(String encoded) {
+    List<NodeRecord> nodes = new ArrayList<NodeRecord>();
+    for (String line : encoded.split("\n")) {
+      if (line.length() == 0) {
+        continue;
+      }
+      String[] fields = line.split("\t", -1);
+      String nodeName = fields.length > 1 && fields[1].length() > 0 ? fields[1] : null;
+      ExecutorPolicy.Lane lane = ExecutorPolicy.Lane.DEFAULT;
+      if (fields.length > 2) {
+        try {
+          lane = ExecutorPolicy.Lane.valueOf(fields[2]);
+        } catch (IllegalArgumentException e) {
+          Log.w(TAG, "Unknown lane " + fields[2] + ", restoring " + fields[0] + " in DEFAULT.");
+        }
+      }
+      boolean privateHost = fields.length > 3 && fields[3].equals("private");
+      String namespace = fields.length > 4 && fields[4].length() > 0 ? fields[4] : null;
+      Map<String, String> remappings = new LinkedHashMap<String, String>();
+      if (fields.length > 5) {
+        for (String pair : fields[5].split(" ")) {
+          int equals = pair.indexOf('=');
+          if (equals > 0) {
+            remappings.put(pair.substring(0, equals), pair.substring(equals + 1));
+          }
+        }
+      }
+      nodes.add(new NodeRecord(fields[0], nodeName, lane, privateHost, namespace, remappings));
+    }
+    return nodes;
+  }
+
+  private static String encodePolicy(ExecutorPolicy executorPolicy) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(executorPolicy);
+      out.close();
+    } catch (IOException e) {
+      // Not thrown by a ByteArrayOutputStream.
+      throw new IllegalStateException(e);
+    }
+    return Base64.encodeToString(bytes.toByteArray(), Base64.NO_WRAP);
+  }
+
+  private static ExecutorPolicy decodePolicy(String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    try {
+      ObjectInputStream in =
+          new ObjectInputStream(new ByteArrayInputStream(Base64.decode(encoded, Base64.NO_WRAP)));
+      try {
+        return (ExecutorPolicy) in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      // Saved by an incompatible version.
+      Log.w(TAG, "Dropping saved executor policy: " + e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import com.google.common.base.Preconditions;
+
+import android.util.Log;
+
+import org.ros.RosCore;
+import org.ros.node.NodeMain;
+import org.ros.node.NodeMainExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tears down the nodes, executors and core of a
+ * {@link NodeMainExecutorService} within a fixed time.
+ * <p/>
+ * All nodes are shut down in parallel and get {@code deadlineMillis} in total
+ * to unregister from the master. Nodes which are still busy after that are
+ * interrupted and their executors are shut down forcefully. The core is shut
+ * down last, since the nodes unregister with it, and gets
+ * {@link #CORE_DEADLINE_MILLIS} on its own.
+ */
+public final class ShutdownCoordinator {
+
+  private static final String TAG = "ShutdownCoordinator";
+
+  static final long DEFAULT_DEADLINE_MILLIS = 3000;
+  static final long CORE_DEADLINE_MILLIS = 2000;
+
+  /**
+   * Outcome of a shutdown. Durations are in milliseconds.
+   */
+  public static final class Report {
+
+    private final int nodes;
+    private final List<String> stragglers;
+    private final long nodesMillis;
+    private final long executorsMillis;
+    private final long coreMillis;
+    private final boolean coreTimedOut;
+
+    Report(int nodes, List<String> stragglers, long nodesMillis, long executorsMillis,
+           long coreMillis, boolean coreTimedOut) {
+      this.nodes = nodes;
+      this.stragglers = Collections.unmodifiableList(stragglers);
+      this.nodesMillis = nodesMillis;
+      this.executorsMillis = executorsMillis;
+      this.coreMillis = coreMillis;
+      this.coreTimedOut = coreTimedOut;
+    }
+
+    public int getNodeCount() {
+      return nodes;
+    }
+
+    /**
+     * @return the default names of the nodes which did not shut down in time
+     */
+    public List<String> getStragglers() {
+      return stragglers;
+    }
+
+    public long getNodesMillis() {
+      return nodesMillis;
+    }
+
+    public long getExecutorsMillis() {
+      return executorsMillis;
+    }
+
+    public long getCoreMillis() {
+      return coreMillis;
+    }
+
+    public boolean hasCoreTimedOut() {
+      return coreTimedOut;
+    }
+
+    public long getTotalMillis() {
+      return nodesMillis + executorsMillis + coreMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "nodes=" + nodes + " in " + nodesMillis + " ms, stragglers=" + stragglers
+          + ", executors " + executorsMillis + " ms, core " + coreMillis + " ms"
+          + (coreTimedOut ? " (timed out)" : "");
+    }
+  }
+
+  private final long deadlineMillis;
+  private final Map<NodeMain, NodeMainExecutor> nodes;
+  private final List<NodeMainExecutor> executors;
+  private RosCore rosCore;
+
+  ShutdownCoordinator(long deadlineMillis) {
+    Preconditions.checkArgument(deadlineMillis > 0);
+    this.deadlineMillis = deadlineMillis;
+    nodes = new LinkedHashMap<NodeMain, NodeMainExecutor>();
+    executors = new ArrayList<NodeMainExecutor>();
+  }
+
+  void addNode(NodeMain nodeMain, NodeMainExecutor executor) {
+    nodes.put(nodeMain, executor);
+  }
+
+  void addExecutor(NodeMainExecutor executor) {
+    executors.add(executor);
+  }
+
+  void setRosCore(RosCore rosCore) {
+    this.rosCore = rosCore;
+  }
+
+  /**
+   * Shuts everything down. Blocks for at most the node deadline plus
+   * {@link #CORE_DEADLINE_MILLIS}.
+   */
+  Report run() {
+    ExecutorService shutdownExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      long start = System.nanoTime();
+      List<String> stragglers = shutdownNodes(shutdownExecutor);
+      long nodesDone = System.nanoTime();
+      for (NodeMainExecutor executor : executors) {
+        executor.getScheduledExecutorService().shutdownNow();
+      }
+      long executorsDone = System.nanoTime();
+      boolean coreTimedOut = shutdownCore(shutdownExecutor);
+      long coreDone = System.nanoTime();
+      Report report = new Report(nodes.size(), stragglers, millisBetween(start, nodesDone),
+          millisBetween(nodesDone, executorsDone), millisBetween(executorsDone, coreDone),
+          coreTimedOut);
+      Log.i(TAG, "Shutdown finished: " + report);
+      return report;
+    } finally {
+      shutdownExecutor.shutdownNow();
+    }
+  }
+
+  private List<String> shutdownNodes(ExecutorService shutdownExecutor) {
+    Map<NodeMain, Future<?>> pending = new LinkedHashMap<NodeMain, Future<?>>();
+    for (final Map.Entry<NodeMain, NodeMainExecutor> entry : nodes.entrySet()) {
+      pending.put(entry.getKey(), shutdownExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          entry.getValue().shutdownNodeMain(entry.getKey());
+        }
+      }));
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    List<String> stragglers = new ArrayList<String>();
+    for (Map.Entry<NodeMain, Future<?>> entry : pending.entrySet()) {
+      try {
+        entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        stragglers.add(entry.getKey().getDefaultNodeName().toString());
+        entry.getValue().cancel(true);
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Failed to shut down " + entry.getKey().getDefaultNodeName(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        entry.getValue().cancel(true);
+      }
+    }
+    return stragglers;
+  }
+
+  /**
+   * @return {@code true} if the core did not shut down in time
+   */
+  private boolean shutdownCore(ExecutorService shutdownExecutor) {
+    if (rosCore == null) {
+      return false;
+    }
+    Future<?> shutdown = shutdownExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        rosCore.shutdown();
+      }
+    });
+    try {
+      shutdown.get(CORE_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+      return false;
+    } catch (TimeoutException e) {
+      shutdown.cancel(true);
+      return true;
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Failed to shut down the core.", e.getCause());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    }
+  }
+
+  private static long millisBetween(long startNanos, long endNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide timeline of the startup phases from binding the
+ * {@link NodeMainExecutorService} to the first node.
+ * <p/>
+ * Marks are stored with a monotonic timestamp in a fixed size ring buffer,
+ * recording one never allocates and never blocks. Once the buffer is full the
+ * oldest marks are overwritten. Reading is best effort while marks are still
+ * being recorded.
+ */
+public final class StartupTrace {
+
+  static final int CAPACITY = 256;
+
+  private static final StartupTrace INSTANCE = new StartupTrace(CAPACITY);
+
+  public enum Phase {
+    ACTIVITY_START,
+    SERVICE_BIND,
+    SERVICE_CONNECTED,
+    CHOOSER_START,
+    CHOOSER_CREATED,
+    PROBE_START,
+    PROBE_DONE,
+    CHOOSER_RESULT,
+    MASTER_START,
+    MASTER_READY,
+    INIT_START,
+    NODE_EXECUTE,
+    INIT_DONE
+  }
+
+  /**
+   * A single recorded mark.
+   */
+  public static final class Event {
+
+    private final Phase phase;
+    private final long timestampNanos;
+    private final long threadId;
+
+    Event(Phase phase, long timestampNanos, long threadId) {
+      this.phase = phase;
+      this.timestampNanos = timestampNanos;
+      this.threadId = threadId;
+    }
+
+    public Phase getPhase() {
+      return phase;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the phase was reached
+     */
+    public long getTimestampNanos() {
+      return timestampNanos;
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+    @Override
+    public String toString() {
+      return phase + "@" + timestampNanos;
+    }
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private final int capacity;
+  private final int[] phases;
+  private final long[] timestamps;
+  private final long[] threadIds;
+  private final AtomicLong sequence;
+
+  public static StartupTrace getInstance() {
+    return INSTANCE;
+  }
+
+  StartupTrace(int capacity) {
+    this.capacity = capacity;
+    phases = new int[capacity];
+    timestamps = new long[capacity];
+    threadIds = new long[capacity];
+    sequence = new AtomicLong();
+  }
+
+  public void mark(Phase phase) {
+    long now = System.nanoTime();
+    int slot = (int) (sequence.getAndIncrement() % capacity);
+    phases[slot] = phase.ordinal();
+    timestamps[slot] = now;
+    threadIds[slot] = Thread.currentThread().getId();
+  }
+
+  /**
+   * @return the recorded marks, oldest first
+   */
+  public List<Event> getEvents() {
+    long end = sequence.get();
+    long start = Math.max(0, end - capacity);
+    List<Event> events = new ArrayList<Event>((int) (end - start));
+    for (long i = start; i < end; i++) {
+      int slot = (int) (i % capacity);
+      events.add(new Event(PHASES[phases[slot]], timestamps[slot], threadIds[slot]));
+    }
+    return events;
+  }
+
+  /**
+   * @return the time between the first mark of {@code from} and the first
+   *         following mark of {@code to} in milliseconds, or -1
+   */
+  public long getMillisBetween(Phase from, Phase to) {
+    long fromNanos = -1;
+    for (Event event : getEvents()) {
+      if (fromNanos == -1 && event.getPhase() == from) {
+        fromNanos = event.getTimestampNanos();
+      } else if (fromNanos != -1 && event.getPhase() == to) {
+        return TimeUnit.NANOSECONDS.toMillis(event.getTimestampNanos() - fromNanos);
+      }
+    }
+    return -1;
+  }
+
+  public void reset() {
+    sequence.set(0);
+  }
+
+  /**
+   * Writes all marks in the Chrome trace event format, which can be opened in
+   * chrome://tracing. Timestamps are relative to the first mark.
+   */
+  public void writeChromeTrace(Writer writer) throws IOException {
+    List<Event> events = getEvents();
+    long origin = events.isEmpty() ? 0 : events.get(0).getTimestampNanos();
+    writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    for (int i = 0; i < events.size(); i++) {
+      Event event = events.get(i);
+      if (i > 0) {
+        writer.write(',');
+      }
+      writer.write("{\"name\":\"" + event.getPhase() + "\",\"ph\":\"i\",\"s\":\"p\",\"pid\":1,"
+          + "\"tid\":" + event.getThreadId() + ",\"ts\":"
+          + TimeUnit.NANOSECONDS.toMicros(event.getTimestampNanos() - origin) + "}");
+    }
+    writer.write("]}");
+  }
+
+  public void writeChromeTrace(File file) throws IOException {
+    Writer writer = new FileWriter(file);
+    try {
+      writeChromeTrace(writer);
+    } finally {
+      writer.close();
+    }
+  }
+}
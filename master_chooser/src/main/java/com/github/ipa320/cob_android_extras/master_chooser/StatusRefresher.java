@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 Benjamin Maidel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.github.ipa320.cob_android_extras.master_chooser;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-probes the saved masters in the background so that the list shows a
+ * recent status without the user selecting a master first.
+ * <p/>
+ * Every tick starts at most {@link #PROBES_PER_TICK} probes of masters whose
+ * last probe is older than {@link #STALE_MILLIS}: the visible rows first, top
+ * to bottom, then all other rows in the order of the list, i.e. most recently
+ * used first. The results go to the given callback, which stores them.
+ * <p/>
+ * Only this periodic refresh is rate limited. The chooser still probes all
+ * masters in parallel when the list is first loaded and marks them as probed.
+ */
+final class StatusRefresher {
+
+  private static final String TAG = "StatusRefresher";
+
+  static final long TICK_MILLIS = 500;
+  static final int PROBES_PER_TICK = 2;
+  static final int MAX_IN_FLIGHT = 4;
+  static final long STALE_MILLIS = 30000;
+
+  private final MasterProber prober;
+  private final MasterProber.Callback callback;
+  private final ScheduledExecutorService executor;
+  private final Map<String, Long> lastProbed;
+  private final Set<String> inFlight;
+  private List<String> visible;
+  private List<String> connections;
+  private ScheduledFuture<?> ticks;
+
+  StatusRefresher(MasterProber prober, MasterProber.Callback callback) {
+    this.prober = prober;
+    this.callback = callback;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    lastProbed = new HashMap<String, Long>();
+    inFlight = new HashSet<String>();
+    visible = Collections.emptyList();
+    connections = Collections.emptyList();
+  }
+
+  /**
+   * @param urls
+   *          the masters of the list in list order
+   * @param probed
+   *          the time each master was last probed according to the connection
+   *          store, masters which were never probed may be left out
+   */
+  synchronized void setConnections(List<String> urls, Map<String, Long> probed) {
+    connections = urls;
+    for (Map.Entry<String, Long> entry : probed.entrySet()) {
+      Long known = lastProbed.get(entry.getKey());
+      if (known == null || known < entry.getValue()) {
+        lastProbed.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * @param urls
+   *          the masters of the visible rows, top to bottom
+   */
+  synchronized void setVisible(List<String> urls) {
+    visible = urls;
+  }
+
+  /**
+   * Records a probe which was not started by the refresher, e.g. because the
+   * user selected the master.
+   */
+  synchronized void markProbed(String url) {
+    lastProbed.put(url, System.currentTimeMillis());
+  }
+
+  synchronized void start() {
+    if (ticks == null) {
+      ticks = executor.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          tick();
+        }
+      }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  synchronized void stop() {
+    if (ticks != null) {
+      ticks.cancel(false);
+      ticks = null;
+    }
+  }
+
+  void shutdown() {
+    stop();
+    executor.shutdownNow();
+  }
+
+  private void tick() {
+    List<String> due;
+    synchronized (this) {
+      due = nextDue(System.currentTimeMillis());
+      inFlight.addAll(due);
+    }
+    for (final String url : due) {
+      try {
+        prober.probe(url, new MasterProber.Callback() {
+          @Override
+          public void onProbeResult(ProbeResult result) {
+            synchronized (StatusRefresher.this) {
+              inFlight.remove(url);
+              lastProbed.put(url, System.currentTimeMillis());
+            }
+            callback.onProbeResult(result);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // The prober has been shut down, the refresher will follow shortly.
+        Log.d(TAG, "Prober shut down, not refreshing " + url);
+        return;
+      }
+    }
+  }
+
+  private List<String> nextDue(long now) {
+    int budget = Math.min(PROBES_PER_TICK, MAX_IN_FLIGHT - inFlight.size());
+    List<String> due = new ArrayList<String>(Math.max(budget, 0));
+    collectDue(visible, now, budget, due);
+    collectDue(connections, now, budget, due);
+    return due;
+  }
+
+  private void collectDue(List<String> urls, long now, int budget, List<String> due) {
+    for (String url : urls) {
+      if (due.size() >= budget) {
+        return;
+      }
+      if (inFlight.contains(url) || due.contains(url)) {
+        continue;
+      }
+      Long probed = lastProbed.get(url);
+      if (probed == null || now - probed >= STALE_MILLIS) {
+        due.add(url);
+      }
+    }
+  }
+}